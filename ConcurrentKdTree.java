@@ -0,0 +1,476 @@
+/*************************************************************************
+ *  Compilation:  javac ConcurrentKdTree.java
+ *  Execution:    java ConcurrentKdTree [threads] [points per thread]
+ *  Dependencies: KdTree.java Point2D.java PointScan.java RectHV.java
+ *                StdRandom.java StdOut.java
+ *
+ *  2d-tree that any number of threads can insert into and query at the
+ *  same time without locking. Nodes are never changed once they are in
+ *  the tree except for their child links, which start out null and are
+ *  set exactly once with a compare-and-set. A reader therefore always
+ *  sees a consistent tree, and a point is in the tree from the moment
+ *  the compare-and-set that links its node succeeds.
+ *
+ *  Nodes split in the same order as KdTree's, ties broken on the other
+ *  coordinate. The tree is never rebalanced, since that would mean moving
+ *  nodes under readers, so points inserted one at a time in sorted order
+ *  still make a deep tree: build it from the points known up front with
+ *  the bulk-load constructor, which splits on the median as KdTree does.
+ *  The queries walk the tree with an explicit stack rather than recursion,
+ *  so a deep tree makes them slow but does not overflow the stack.
+ *
+ *  size() is bumped just after the compare-and-set, so for a moment a
+ *  point can be in the tree, and found by contains(), before size()
+ *  counts it. size() is never lower than the number of inserts that have
+ *  returned true, and never more than the number of points in the tree.
+ *
+ *  The main() method is a stress test: writer threads insert overlapping
+ *  sets of points while reader threads check that contains(), nearest()
+ *  and size() reflect every insert that has returned.
+ *
+ *************************************************************************/
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+public class ConcurrentKdTree
+{
+    private static class Node
+    {
+        private final Point2D point;
+        private final boolean isVertical;
+        volatile Node left;
+        volatile Node right;
+
+        private Node(Point2D p, boolean vertical)
+        {
+            this.point = p;
+            this.isVertical = vertical;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Node, Node> LEFT =
+        AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "left");
+    private static final AtomicReferenceFieldUpdater<Node, Node> RIGHT =
+        AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "right");
+    private static final AtomicReferenceFieldUpdater<ConcurrentKdTree, Node> ROOT =
+        AtomicReferenceFieldUpdater.newUpdater(ConcurrentKdTree.class, Node.class, "root");
+
+    private volatile Node root;
+    private final AtomicInteger size = new AtomicInteger();
+
+    public ConcurrentKdTree()
+    {
+    }
+
+    //  builds a balanced tree from all the points at once by splitting on the
+    //  median at every level, so the depth is ~lg n whatever order the points
+    //  come in
+    public ConcurrentKdTree(Collection<Point2D> points)
+    {
+        Point2D[] a = points.toArray(new Point2D[points.size()]);
+        int n = KdTree.distinct(a);
+        root = build(a, 0, n, true);
+        size.set(n);
+    }
+
+    //  builds the subtree for a[lo..hi), splitting on the given axis
+    private static Node build(Point2D[] a, int lo, int hi, boolean vertical)
+    {
+        if (lo >= hi)
+            return null;
+        int mid = KdTree.median(a, lo, hi, vertical);
+        Node n = new Node(a[mid], vertical);
+        n.left = build(a, lo, mid, !vertical);
+        n.right = build(a, mid + 1, hi, !vertical);
+        return n;
+    }
+
+    public boolean isEmpty()
+    {
+        return root == null;
+    }
+
+    //  number of points whose insert() has returned true, or is about to:
+    //  a point just linked into the tree may not be counted yet
+    public int size()
+    {
+        return size.get();
+    }
+
+    //  adds p unless it is already in the tree; returns true if it was added
+    public boolean insert(Point2D p)
+    {
+        Node n = root;
+        if (n == null)
+        {
+            if (ROOT.compareAndSet(this, null, new Node(p, true)))
+            {
+                size.incrementAndGet();
+                return true;
+            }
+            n = root;
+        }
+
+        while (true)
+        {
+            if (n.point.equals(p))
+                return false;
+
+            AtomicReferenceFieldUpdater<Node, Node> link = RIGHT;
+            if (goesLeft(n, p))
+                link = LEFT;
+
+            Node child = link.get(n);
+            if (child == null)
+            {
+                if (link.compareAndSet(n, null, new Node(p, !n.isVertical)))
+                {
+                    size.incrementAndGet();
+                    return true;
+                }
+                //  another thread linked a node here first, carry on below it
+                child = link.get(n);
+            }
+            n = child;
+        }
+    }
+
+    public boolean contains(Point2D p)
+    {
+        Node n = root;
+        while (n != null)
+        {
+            if (n.point.equals(p))
+                return true;
+            if (goesLeft(n, p))
+                n = n.left;
+            else
+                n = n.right;
+        }
+        return false;
+    }
+
+    //  whether p belongs in the left subtree of n, ties on the splitting
+    //  line going by the other coordinate
+    private static boolean goesLeft(Node n, Point2D p)
+    {
+        return KdTree.order(n.isVertical).compare(p, n.point) < 0;
+    }
+
+    public Iterable<Point2D> range(RectHV rect)
+    {
+        ArrayList<Point2D> pointsInRange = new ArrayList<Point2D>();
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        Node n = root;
+        if (n != null)
+            stack.push(n);
+        while (!stack.isEmpty())
+        {
+            n = stack.pop();
+            Point2D p = n.point;
+            if (rect.contains(p))
+                pointsInRange.add(p);
+
+            double pointCoord = p.y();
+            double rectMin = rect.ymin();
+            double rectMax = rect.ymax();
+            if (n.isVertical)
+            {
+                pointCoord = p.x();
+                rectMin = rect.xmin();
+                rectMax = rect.xmax();
+            }
+
+            //  points on the splitting line may be on either side of it
+            Node left = n.left;
+            Node right = n.right;
+            if (left != null && pointCoord >= rectMin)
+                stack.push(left);
+            if (right != null && pointCoord <= rectMax)
+                stack.push(right);
+        }
+        return pointsInRange;
+    }
+
+    public Point2D nearest(Point2D p)
+    {
+        Node n = root;
+        if (n == null)
+            return null;
+
+        double x = p.x();
+        double y = p.y();
+        Point2D best = n.point;
+        double bestDistance = PointScan.distanceSquared(x, y, best);
+
+        //  subtrees still to search, each with a lower bound on the squared
+        //  distance from the query to any point in it
+        Node[] nodes = new Node[64];
+        double[] bounds = new double[64];
+        nodes[0] = n;
+        int top = 1;
+        while (top > 0)
+        {
+            top--;
+            n = nodes[top];
+            double bound = bounds[top];
+            nodes[top] = null;
+            if (bound >= bestDistance)
+                continue;
+
+            Point2D nPoint = n.point;
+            double distance = PointScan.distanceSquared(x, y, nPoint);
+            if (distance < bestDistance)
+            {
+                best = nPoint;
+                bestDistance = distance;
+            }
+
+            //  signed distance from the query to the splitting line
+            double d = y - nPoint.y();
+            if (n.isVertical)
+                d = x - nPoint.x();
+
+            //  read each link once, it may be set while we are in here
+            Node near = n.right;
+            Node far = n.left;
+            if (goesLeft(n, p))
+            {
+                near = n.left;
+                far = n.right;
+            }
+
+            //  push the far side first so the near side is searched first
+            if (top + 2 > nodes.length)
+            {
+                nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+                bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+            }
+            if (far != null)
+            {
+                nodes[top] = far;
+                bounds[top] = Math.max(bound, d * d);
+                top++;
+            }
+            if (near != null)
+            {
+                nodes[top] = near;
+                bounds[top] = bound;
+                top++;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Stress test: the writer threads insert random points from the same
+     * 1000-by-1000 grid, so many inserts race with an insert of the same
+     * point by another thread. Each writer publishes how many of its
+     * inserts have returned, and the reader threads check points that
+     * other threads have finished inserting.
+     */
+    public static void main(String[] args) throws InterruptedException
+    {
+        int threads = 8;
+        int perThread = 100000;
+        if (args.length > 0)
+            threads = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            perThread = Integer.parseInt(args[1]);
+
+        final ConcurrentKdTree tree = new ConcurrentKdTree();
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicIntegerArray inserted = new AtomicIntegerArray(threads);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        final Point2D[][] work = new Point2D[threads][perThread];
+        for (int t = 0; t < threads; t++)
+        {
+            for (int i = 0; i < perThread; i++)
+                work[t][i] = new Point2D(StdRandom.uniform(1000) / 1000.0, StdRandom.uniform(1000) / 1000.0);
+        }
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final int me = t;
+            final Point2D[] mine = work[t];
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        insertAndCheck();
+                    }
+                    catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+
+                private void insertAndCheck() {
+                    int lastSize = 0;
+                    for (Point2D p : mine) {
+                        if (tree.insert(p))
+                            added.incrementAndGet();
+                        inserted.incrementAndGet(me);
+
+                        //  once insert() returns, every thread must see the point
+                        if (!tree.contains(p))
+                            throw new RuntimeException("inserted point missing: " + p);
+                        if (tree.nearest(p).distanceSquaredTo(p) != 0.0)
+                            throw new RuntimeException("nearest missed inserted point: " + p);
+
+                        //  size() never goes backwards
+                        int size = tree.size();
+                        if (size < lastSize)
+                            throw new RuntimeException("size went from " + lastSize + " to " + size);
+                        lastSize = size;
+                    }
+                }
+            });
+        }
+
+        int readerCount = Math.max(2, threads / 2);
+        final int[] reads = new int[readerCount];
+        Thread[] readers = new Thread[readerCount];
+        for (int r = 0; r < readerCount; r++)
+        {
+            final int me = r;
+            readers[r] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        readAndCheck();
+                    }
+                    catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+
+                private void readAndCheck() {
+                    while (!done.get() && failure.get() == null) {
+                        //  the count goes up after the insert returns, so
+                        //  every point before it is in the tree
+                        int t = StdRandom.uniform(work.length);
+                        int finished = inserted.get(t);
+                        if (finished == 0)
+                            continue;
+                        Point2D p = work[t][StdRandom.uniform(finished)];
+                        if (!tree.contains(p))
+                            throw new RuntimeException("point inserted by thread " + t + " missing: " + p);
+                        if (tree.nearest(p).distanceSquaredTo(p) != 0.0)
+                            throw new RuntimeException("nearest missed point inserted by thread " + t + ": " + p);
+
+                        //  size() counts each insert before it returns true
+                        int known = added.get();
+                        int size = tree.size();
+                        if (size < known)
+                            throw new RuntimeException("size " + size + " after " + known + " successful inserts");
+                        reads[me]++;
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread reader : readers)
+            reader.start();
+        for (Thread worker : workers)
+            worker.start();
+        for (Thread worker : workers)
+            worker.join();
+        long nanos = System.nanoTime() - start;
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw failure.get();
+
+        HashSet<Point2D> distinct = new HashSet<Point2D>();
+        for (Point2D[] mine : work)
+        {
+            for (Point2D p : mine)
+            {
+                distinct.add(p);
+                if (!tree.contains(p))
+                    throw new RuntimeException("point missing after join: " + p);
+            }
+        }
+        if (tree.size() != distinct.size() || added.get() != distinct.size())
+            throw new RuntimeException("size " + tree.size() + ", " + added.get()
+                                       + " successful inserts, " + distinct.size() + " distinct points");
+        int inRange = 0;
+        for (Point2D p : tree.range(new RectHV(0.0, 0.0, 1.0, 1.0)))
+            inRange++;
+        if (inRange != distinct.size())
+            throw new RuntimeException("range found " + inRange + " of " + distinct.size() + " points");
+
+        int checked = 0;
+        for (int count : reads)
+            checked += count;
+        StdOut.printf("%d threads, %d points, %d distinct, %d reads by %d readers: ok (%.1f ms)\n",
+                      threads, threads * perThread, distinct.size(), checked, readerCount, nanos / 1e6);
+
+        checkSorted(20000, false);
+        checkSorted(20000, true);
+    }
+
+    //  inserts n points in order along a vertical line, so that each one
+    //  goes below the last and they all tie on x, or bulk loads them, then
+    //  checks the queries against a scan of the points
+    private static void checkSorted(int n, boolean bulk)
+    {
+        long start = System.nanoTime();
+        ArrayList<Point2D> points = new ArrayList<Point2D>();
+        for (int i = 0; i < n; i++)
+            points.add(new Point2D(0.5, i / (double) n));
+        ConcurrentKdTree tree;
+        if (bulk)
+            tree = new ConcurrentKdTree(points);
+        else
+        {
+            tree = new ConcurrentKdTree();
+            for (Point2D p : points)
+                tree.insert(p);
+        }
+
+        if (tree.size() != n)
+            throw new RuntimeException("size " + tree.size() + " of " + n + " sorted points");
+        for (int i = 0; i < 100; i++)
+        {
+            Point2D q = new Point2D(StdRandom.uniform(), StdRandom.uniform());
+            Point2D best = points.get(0);
+            for (Point2D p : points)
+            {
+                if (p.distanceSquaredTo(q) < best.distanceSquaredTo(q))
+                    best = p;
+            }
+            if (tree.nearest(q).distanceSquaredTo(q) != best.distanceSquaredTo(q))
+                throw new RuntimeException("nearest(" + q + ") is " + tree.nearest(q) + ", expected " + best);
+
+            RectHV rect = new RectHV(0.5, Math.min(q.x(), q.y()), 1.0, Math.max(q.x(), q.y()));
+            int expected = 0;
+            for (Point2D p : points)
+            {
+                if (rect.contains(p))
+                    expected++;
+            }
+            int inRange = 0;
+            for (Point2D p : tree.range(rect))
+                inRange++;
+            if (inRange != expected)
+                throw new RuntimeException("range(" + rect + ") found " + inRange + ", expected " + expected);
+        }
+
+        String how = "inserted in order";
+        if (bulk)
+            how = "bulk loaded";
+        StdOut.printf("%d points on a line, %s: ok (%.1f ms)\n", n, how, (System.nanoTime() - start) / 1e6);
+    }
+}
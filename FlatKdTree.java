@@ -0,0 +1,486 @@
+/*************************************************************************
+ *  Compilation:  javac FlatKdTree.java
+ *  Dependencies: Point2D.java RectHV.java PointScan.java
+ *
+ *  Static 2d-tree kept in two flat arrays of coordinates instead of
+ *  linked nodes. The tree is left-balanced and its top levels are
+ *  stored in level order (Eytzinger layout), so the children of node i
+ *  are 2i+1 and 2i+2 and the splitting axis is given by the depth of
+ *  the node.
+ *
+ *  The subtrees below the last stored level are not split any further:
+ *  each one is kept as a bucket of at most leafSize points, right after
+ *  the nodes in the same arrays, and is searched by a linear scan
+ *  (see PointScan).
+ *
+ *  The arrays are read through DoubleBuffer and IntBuffer views, so the
+ *  same queries also run on a tree that write() saved to a file and
+ *  MappedKdTree mapped back into memory without reading it into the
+ *  heap.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class FlatKdTree
+{
+    //  leaf size used when none is given
+    private static final int LEAF_SIZE = 16;
+
+    //  xs[0..buckets-1], ys[0..buckets-1] are the nodes, the rest are the
+    //  points of the buckets, bucket b being [start[b], start[b+1]). they
+    //  wrap arrays, or parts of a mapped file
+    private final DoubleBuffer xs;
+    private final DoubleBuffer ys;
+    private final IntBuffer start;
+    private final int size;
+
+    //  index of the first bucket, which is also the number of nodes. the
+    //  children of node i are buckets when 2i+1 >= buckets
+    private final int buckets;
+
+    //  file layout, all little-endian: the ints MAGIC, VERSION, size and
+    //  buckets, then start[0..buckets+1], zeros up to the next multiple of
+    //  8 bytes, then xs[0..size-1] and ys[0..size-1]
+    static final int MAGIC = 0x4b645472;
+    static final int VERSION = 1;
+
+    //  builds the tree from the distinct points in the collection
+    public FlatKdTree(Collection<Point2D> points)
+    {
+        this(points, LEAF_SIZE);
+    }
+
+    //  builds the tree from the distinct points in the collection, leaving
+    //  at most leafSize points in each bucket
+    public FlatKdTree(Collection<Point2D> points, int leafSize)
+    {
+        this(coordinates(points, true), coordinates(points, false), leafSize);
+    }
+
+    //  builds the tree from the distinct points (x[i], y[i])
+    public FlatKdTree(double[] x, double[] y)
+    {
+        this(x, y, LEAF_SIZE);
+    }
+
+    //  builds the tree from the distinct points (x[i], y[i]), leaving at
+    //  most leafSize points in each bucket
+    public FlatKdTree(double[] x, double[] y, int leafSize)
+    {
+        if (leafSize < 1)
+            throw new IllegalArgumentException("leaf size must be positive");
+        if (x.length != y.length)
+            throw new IllegalArgumentException("x and y have different lengths");
+
+        //  sort a copy so that duplicates are next to each other
+        x = x.clone();
+        y = y.clone();
+        sort(x, y, 0, x.length - 1, true);
+        int n = 0;
+        for (int i = 0; i < x.length; i++)
+        {
+            if (n == 0 || x[i] != x[n - 1] || y[i] != y[n - 1])
+            {
+                x[n] = x[i];
+                y[n] = y[i];
+                n++;
+            }
+        }
+
+        //  split until the leftmost subtree, the largest one on its level,
+        //  fits in a bucket
+        int levels = 0;
+        for (int m = n; m > leafSize; m = leftSize(m))
+            levels++;
+
+        size = n;
+        buckets = (1 << levels) - 1;
+        xs = DoubleBuffer.wrap(new double[n]);
+        ys = DoubleBuffer.wrap(new double[n]);
+        start = IntBuffer.wrap(new int[buckets + 2]);
+        start.put(0, buckets);
+        build(x, y, 0, n, 0, true);
+    }
+
+    //  the tree held in the buffers, laid out as by the constructors above
+    FlatKdTree(DoubleBuffer xs, DoubleBuffer ys, IntBuffer start, int size, int buckets)
+    {
+        this.xs = xs;
+        this.ys = ys;
+        this.start = start;
+        this.size = size;
+        this.buckets = buckets;
+    }
+
+    private static double[] coordinates(Collection<Point2D> points, boolean x)
+    {
+        double[] a = new double[points.size()];
+        int i = 0;
+        for (Point2D p : points)
+            a[i++] = x ? p.x() : p.y();
+        return a;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    //  puts the median of x[lo..hi), y[lo..hi) at node i and recurses so
+    //  that every level but the last is full and the last is filled from
+    //  the left. once i is past the nodes the points go in its bucket
+    private void build(double[] x, double[] y, int lo, int hi, int i, boolean vertical)
+    {
+        if (i >= buckets)
+        {
+            //  buckets are reached left to right, so each starts where
+            //  the one before ended
+            int b = i - buckets;
+            int first = start.get(b);
+            start.put(b + 1, first + hi - lo);
+            for (int j = lo; j < hi; j++)
+            {
+                xs.put(first + j - lo, x[j]);
+                ys.put(first + j - lo, y[j]);
+            }
+            return;
+        }
+
+        int mid = lo + leftSize(hi - lo);
+        if (vertical)
+            select(x, y, lo, hi - 1, mid);
+        else
+            select(y, x, lo, hi - 1, mid);
+
+        xs.put(i, x[mid]);
+        ys.put(i, y[mid]);
+        build(x, y, lo, mid, 2 * i + 1, !vertical);
+        build(x, y, mid + 1, hi, 2 * i + 2, !vertical);
+    }
+
+    //  number of nodes in the left subtree of a left-balanced tree of n nodes
+    private static int leftSize(int n)
+    {
+        if (n <= 1)
+            return 0;
+        int full = Integer.highestOneBit(n);
+        int half = full / 2;
+        int last = n - full + 1;
+        return half - 1 + Math.min(last, half);
+    }
+
+    //  rearranges key[lo..hi] (and other[] along with it) so that key[k]
+    //  is in its sorted position
+    private static void select(double[] key, double[] other, int lo, int hi, int k)
+    {
+        while (hi > lo)
+        {
+            int j = partition(key, other, lo, hi);
+            if (j < k)
+                lo = j + 1;
+            else if (j > k)
+                hi = j - 1;
+            else
+                return;
+        }
+    }
+
+    //  sorts key[lo..hi] (and other[] along with it), and with thenOther
+    //  sorts each run of equal keys by other
+    private static void sort(double[] key, double[] other, int lo, int hi, boolean thenOther)
+    {
+        while (hi > lo)
+        {
+            swap(key, other, lo, lo + (hi - lo) / 2);
+            double v = key[lo];
+            int lt = lo;
+            int gt = hi;
+            int i = lo + 1;
+            while (i <= gt)
+            {
+                if (key[i] < v)
+                    swap(key, other, lt++, i++);
+                else if (key[i] > v)
+                    swap(key, other, i, gt--);
+                else
+                    i++;
+            }
+            if (thenOther)
+                sort(other, key, lt, gt, false);
+
+            //  recurse on the smaller side so the stack stays ~lg n deep
+            if (lt - lo < hi - gt)
+            {
+                sort(key, other, lo, lt - 1, thenOther);
+                lo = gt + 1;
+            }
+            else
+            {
+                sort(key, other, gt + 1, hi, thenOther);
+                hi = lt - 1;
+            }
+        }
+    }
+
+    private static int partition(double[] key, double[] other, int lo, int hi)
+    {
+        swap(key, other, lo, lo + (hi - lo) / 2);
+        double v = key[lo];
+        int i = lo;
+        int j = hi + 1;
+        while (true)
+        {
+            while (key[++i] < v)
+                if (i == hi) break;
+            while (v < key[--j])
+                if (j == lo) break;
+            if (i >= j)
+                break;
+            swap(key, other, i, j);
+        }
+        swap(key, other, lo, j);
+        return j;
+    }
+
+    private static void swap(double[] key, double[] other, int i, int j)
+    {
+        double t = key[i];
+        key[i] = key[j];
+        key[j] = t;
+        t = other[i];
+        other[i] = other[j];
+        other[j] = t;
+    }
+
+    public boolean contains(Point2D p)
+    {
+        return containsRecursive(0, true, p.x(), p.y());
+    }
+
+    private boolean containsRecursive(int i, boolean vertical, double x, double y)
+    {
+        if (i >= buckets)
+        {
+            int b = i - buckets;
+            return PointScan.indexOf(xs, ys, start.get(b), start.get(b + 1), x, y) >= 0;
+        }
+        if (xs.get(i) == x && ys.get(i) == y)
+            return true;
+
+        double split = ys.get(i);
+        double coord = y;
+        if (vertical)
+        {
+            split = xs.get(i);
+            coord = x;
+        }
+
+        //  points equal to the split can be on either side
+        if (coord < split)
+            return containsRecursive(2 * i + 1, !vertical, x, y);
+        if (coord > split)
+            return containsRecursive(2 * i + 2, !vertical, x, y);
+        return containsRecursive(2 * i + 1, !vertical, x, y)
+            || containsRecursive(2 * i + 2, !vertical, x, y);
+    }
+
+    public Iterable<Point2D> range(RectHV rect)
+    {
+        ArrayList<Point2D> pointsInRange = new ArrayList<Point2D>();
+        rangeRecursive(pointsInRange, rect, 0, true);
+        return pointsInRange;
+    }
+
+    private void rangeRecursive(ArrayList<Point2D> rangeList, RectHV rect, int i, boolean vertical)
+    {
+        if (i >= buckets)
+        {
+            int b = i - buckets;
+            for (int j = start.get(b); j < start.get(b + 1); j++)
+            {
+                double x = xs.get(j);
+                double y = ys.get(j);
+                if (x >= rect.xmin() && x <= rect.xmax() && y >= rect.ymin() && y <= rect.ymax())
+                    rangeList.add(new Point2D(x, y));
+            }
+            return;
+        }
+
+        double x = xs.get(i);
+        double y = ys.get(i);
+        if (x >= rect.xmin() && x <= rect.xmax() && y >= rect.ymin() && y <= rect.ymax())
+            rangeList.add(new Point2D(x, y));
+
+        double split = y;
+        double rectMin = rect.ymin();
+        double rectMax = rect.ymax();
+        if (vertical)
+        {
+            split = x;
+            rectMin = rect.xmin();
+            rectMax = rect.xmax();
+        }
+
+        if (rectMin <= split)
+            rangeRecursive(rangeList, rect, 2 * i + 1, !vertical);
+        if (rectMax >= split)
+            rangeRecursive(rangeList, rect, 2 * i + 2, !vertical);
+    }
+
+    //  number of points inside rect
+    public int rangeCount(RectHV rect)
+    {
+        return rangeCountRecursive(rect, 0, true);
+    }
+
+    private int rangeCountRecursive(RectHV rect, int i, boolean vertical)
+    {
+        if (i >= buckets)
+        {
+            int b = i - buckets;
+            return PointScan.count(xs, ys, start.get(b), start.get(b + 1),
+                                   rect.xmin(), rect.ymin(), rect.xmax(), rect.ymax());
+        }
+
+        int count = 0;
+        double x = xs.get(i);
+        double y = ys.get(i);
+        if (x >= rect.xmin() && x <= rect.xmax() && y >= rect.ymin() && y <= rect.ymax())
+            count++;
+
+        double split = y;
+        double rectMin = rect.ymin();
+        double rectMax = rect.ymax();
+        if (vertical)
+        {
+            split = x;
+            rectMin = rect.xmin();
+            rectMax = rect.xmax();
+        }
+
+        if (rectMin <= split)
+            count += rangeCountRecursive(rect, 2 * i + 1, !vertical);
+        if (rectMax >= split)
+            count += rangeCountRecursive(rect, 2 * i + 2, !vertical);
+        return count;
+    }
+
+    public Point2D nearest(Point2D p)
+    {
+        if (size == 0)
+            return null;
+        int best = nearestRecursive(0, true, p.x(), p.y(), -1);
+        return new Point2D(xs.get(best), ys.get(best));
+    }
+
+    //  returns the index of the closer of best (if not -1) and the nearest
+    //  point in the subtree or bucket at i
+    private int nearestRecursive(int i, boolean vertical, double x, double y, int best)
+    {
+        double bestDistance = Double.POSITIVE_INFINITY;
+        if (best >= 0)
+            bestDistance = distanceSquared(best, x, y);
+
+        if (i >= buckets)
+        {
+            int b = i - buckets;
+            int closest = PointScan.nearest(xs, ys, start.get(b), start.get(b + 1), x, y, bestDistance);
+            if (closest >= 0)
+                best = closest;
+            return best;
+        }
+
+        if (distanceSquared(i, x, y) < bestDistance)
+            best = i;
+
+        //  signed distance from the query to the splitting line
+        double d = ys.get(i) - y;
+        if (vertical)
+            d = xs.get(i) - x;
+
+        int near = 2 * i + 1;
+        int far = 2 * i + 2;
+        if (d < 0)
+        {
+            near = 2 * i + 2;
+            far = 2 * i + 1;
+        }
+
+        best = nearestRecursive(near, !vertical, x, y, best);
+        if (d * d < distanceSquared(best, x, y))
+            best = nearestRecursive(far, !vertical, x, y, best);
+        return best;
+    }
+
+    private double distanceSquared(int i, double x, double y)
+    {
+        double dx = xs.get(i) - x;
+        double dy = ys.get(i) - y;
+        return dx * dx + dy * dy;
+    }
+
+    //  where xs starts in a file holding a tree with this many nodes
+    static long dataOffset(int buckets)
+    {
+        long header = 16 + 4L * (buckets + 2);
+        return (header + 7) / 8 * 8;
+    }
+
+    //  saves the tree to the file, replacing whatever was there
+    public void write(String filename) throws IOException
+    {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE,
+                                               StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(buckets);
+            for (int i = 0; i < buckets + 2; i++)
+            {
+                if (buffer.remaining() < 8)
+                    flush(channel, buffer);
+                buffer.putInt(start.get(i));
+            }
+            for (long i = 16 + 4L * (buckets + 2); i < dataOffset(buckets); i++)
+                buffer.put((byte) 0);
+            for (DoubleBuffer a : new DoubleBuffer[] { xs, ys })
+            {
+                for (int i = 0; i < size; i++)
+                {
+                    if (buffer.remaining() < 8)
+                        flush(channel, buffer);
+                    buffer.putDouble(a.get(i));
+                }
+            }
+            flush(channel, buffer);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -3,31 +3,69 @@
   * Created:       3/11/2014
   * Last Updated:  3/14/2014
   */
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Comparator;
 import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
 public class KdTree
 {
+    //  batches of nearestAll() queries no larger than this run on one thread
+    private static final int QUERIES_PER_TASK = 1024;
+    
+    //  subtrees of fewer points than this are built on one thread
+    private static final int POINTS_PER_TASK = 8192;
+    
+    //  the orders a vertical and a horizontal node split on. each breaks
+    //  ties on the other coordinate, as Point2D.compareTo() does, so only
+    //  equal points compare equal: points on a node's splitting line go
+    //  left or right of it like any others, rather than all going right
+    //  and piling up in one long chain when many share a coordinate
+    private static final Comparator<Point2D> X_THEN_Y = new Comparator<Point2D>()
+    {
+        public int compare(Point2D p, Point2D q)
+        {
+            if (p.x() < q.x()) return -1;
+            if (p.x() > q.x()) return +1;
+            return p.compareTo(q);
+        }
+    };
+    
+    private static final Comparator<Point2D> Y_THEN_X = new Comparator<Point2D>()
+    {
+        public int compare(Point2D p, Point2D q)
+        {
+            return p.compareTo(q);
+        }
+    };
+    
     private static class Node
     {
         private Point2D point;
-        private RectHV rect;
         private boolean isVertical;
         private Node left;
         private Node right;
+        private int size;
+        private int nodes;
+        private boolean deleted;
         
-        private Node(Point2D p, boolean vertical, Node left, Node right, RectHV rectangle)
+        private Node(Point2D p, boolean vertical, Node left, Node right)
         {
             this.point = p;
             this.isVertical = vertical;
             this.left = left;
             this.right = right;
-            this.rect = rectangle;
+            this.size = 1 + size(left) + size(right);
+            this.nodes = 1 + nodes(left) + nodes(right);
         }
         
-        public RectHV getRect()
-        {
-            return this.rect;
-        }
         public Point2D getPoint()
         {
             return point;
@@ -59,17 +97,365 @@ public class KdTree
         }
     }
     
+    //  number of points in the subtree at n, not counting removed ones
+    private static int size(Node n)
+    {
+        if (n == null)
+            return 0;
+        return n.size;
+    }
+    
+    //  number of nodes in the subtree at n, removed or not
+    private static int nodes(Node n)
+    {
+        if (n == null)
+            return 0;
+        return n.nodes;
+    }
+    
+    //  work done by one query, tallied only while counting is on
+    private static class Tally
+    {
+        private long visited;
+        private long pruned;
+        private long heapOperations;
+        private int maxDepth;
+        
+        private void visit(int depth)
+        {
+            visited++;
+            if (depth > maxDepth)
+                maxDepth = depth;
+        }
+    }
+    
+    //  totals of the tallies of every query since counting was turned on.
+    //  queries from several threads (nearestAll) add to them at once
+    private static class Counters
+    {
+        private final LongAdder queries = new LongAdder();
+        private final LongAdder visited = new LongAdder();
+        private final LongAdder pruned = new LongAdder();
+        private final LongAdder heapOperations = new LongAdder();
+        private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+        
+        private void add(Tally t)
+        {
+            queries.increment();
+            visited.add(t.visited);
+            pruned.add(t.pruned);
+            heapOperations.add(t.heapOperations);
+            maxDepth.accumulate(t.maxDepth);
+        }
+    }
+    
     private Node root;
     private int size;
+    
+    //  null while counting is off, so a query then only pays for one null
+    //  check per node
+    private volatile Counters counters;
+    
+    //  answers of nearest(), null unless enableCache() has been called
+    private volatile NearestCache cache;
+    
+    //  smallest rectangle holding every point ever inserted, null while there
+    //  are none. the regions used to prune searches are cut out of it
+    private RectHV bounds;
+    
+    //  a subtree is rebuilt without its removed points once more than this
+    //  fraction of its nodes are removed ones
+    private double rebuildThreshold = 0.5;
+    
+    //  a subtree is out of balance when one of its sides holds more than
+    //  this fraction of its nodes
+    private double alpha = 0.75;
+    
+    //  how bulk builds and rebuilds choose the line each node splits on
+    public enum SplitRule
+    {
+        //  alternate between x and y by depth and split at the median
+        ALTERNATE,
+        
+        //  split along the axis on which the points of the subtree are the
+        //  most spread out, at the median
+        WIDEST_MEDIAN,
+        
+        //  split along the widest axis at the point closest to the middle of
+        //  the spread, so that long thin subtrees get cut across rather than
+        //  along. falls back to the median where that would leave more than
+        //  the balance factor of the points on one side
+        WIDEST_SLIDING_MIDPOINT
+    }
+    
+    private final SplitRule splitRule;
+    
     public KdTree()
     {
+        this(SplitRule.ALTERNATE);
+    }
+    
+    //  an empty tree whose subtrees are rebuilt by the given rule
+    public KdTree(SplitRule rule)
+    {
+        if (rule == null)
+            throw new IllegalArgumentException("split rule is null");
+        splitRule = rule;
         root = null;
         size = 0;
     }
     
+    //  builds a balanced tree from all the points at once by splitting on the
+    //  median at every level, so the depth is ~lg n whatever order the points
+    //  come in. large subtrees are built in parallel on the common fork/join
+    //  pool; the tree is the same as a sequential build would give
+    public KdTree(Collection<Point2D> points)
+    {
+        this(points, SplitRule.ALTERNATE);
+    }
+    
+    //  builds the tree from all the points at once, splitting by the given
+    //  rule. the axis each node splits on is kept in the node, and later
+    //  rebuilds of its subtrees use the same rule
+    public KdTree(Collection<Point2D> points, SplitRule rule)
+    {
+        this(points.toArray(new Point2D[points.size()]), rule);
+    }
+    
+    //  builds a balanced tree from the points (x[i], y[i]). a Point2D is made
+    //  for every pair, duplicates included, before the duplicates are dropped
+    public KdTree(double[] x, double[] y)
+    {
+        this(x, y, SplitRule.ALTERNATE);
+    }
+    
+    public KdTree(double[] x, double[] y, SplitRule rule)
+    {
+        this(points(x, y), rule);
+    }
+    
+    private static Point2D[] points(double[] x, double[] y)
+    {
+        if (x.length != y.length)
+            throw new IllegalArgumentException("x and y have different lengths");
+        Point2D[] a = new Point2D[x.length];
+        for (int i = 0; i < a.length; i++)
+            a[i] = new Point2D(x[i], y[i]);
+        return a;
+    }
+    
+    //  builds the tree over the points in a, reordering it
+    private KdTree(Point2D[] a, SplitRule rule)
+    {
+        this(rule);
+        
+        int n = distinct(a);
+        root = new BuildTask(a, 0, n, true, rule, alpha).invoke();
+        size = n;
+        for (int i = 0; i < n; i++)
+            grow(a[i]);
+    }
+    
+    //  sorts a and moves one of each distinct point to the front, dropping
+    //  duplicates the same way insert() would; returns how many there are
+    static int distinct(Point2D[] a)
+    {
+        Arrays.parallelSort(a);
+        int n = 0;
+        for (int i = 0; i < a.length; i++)
+        {
+            if (n == 0 || !a[i].equals(a[n - 1]))
+                a[n++] = a[i];
+        }
+        return n;
+    }
+    
+    public static KdTree build(Collection<Point2D> points)
+    {
+        return new KdTree(points);
+    }
+    
+    //  builds the subtree for a[lo..hi). vertical is the axis to split on
+    //  under ALTERNATE; the other rules choose their own
+    private static Node build(Point2D[] a, int lo, int hi, boolean vertical, SplitRule rule, double alpha)
+    {
+        if (lo >= hi)
+            return null;
+        
+        int mid = -1;
+        if (rule != SplitRule.ALTERNATE)
+        {
+            double xmin = Double.POSITIVE_INFINITY;
+            double ymin = Double.POSITIVE_INFINITY;
+            double xmax = Double.NEGATIVE_INFINITY;
+            double ymax = Double.NEGATIVE_INFINITY;
+            for (int i = lo; i < hi; i++)
+            {
+                xmin = Math.min(xmin, a[i].x());
+                ymin = Math.min(ymin, a[i].y());
+                xmax = Math.max(xmax, a[i].x());
+                ymax = Math.max(ymax, a[i].y());
+            }
+            vertical = xmax - xmin >= ymax - ymin;
+            
+            if (rule == SplitRule.WIDEST_SLIDING_MIDPOINT)
+            {
+                if (vertical)
+                    mid = slidingMidpoint(a, lo, hi, true, (xmin + xmax) / 2, alpha);
+                else
+                    mid = slidingMidpoint(a, lo, hi, false, (ymin + ymax) / 2, alpha);
+            }
+        }
+        
+        if (mid < 0)
+            mid = median(a, lo, hi, vertical);
+        
+        //  the two halves of the array are disjoint, so they can be built
+        //  at the same time
+        Node left = null;
+        Node right = null;
+        if (hi - lo > POINTS_PER_TASK)
+        {
+            BuildTask leftTask = new BuildTask(a, lo, mid, !vertical, rule, alpha);
+            leftTask.fork();
+            right = build(a, mid + 1, hi, !vertical, rule, alpha);
+            left = leftTask.join();
+        }
+        else
+        {
+            left = build(a, lo, mid, !vertical, rule, alpha);
+            right = build(a, mid + 1, hi, !vertical, rule, alpha);
+        }
+        return new Node(a[mid], vertical, left, right);
+    }
+    
+    //  partitions a[lo..hi) around the point whose coordinate is closest to
+    //  middle: the ones before it in the order of the axis go before it and
+    //  the others after, as insert() would place them. returns its index,
+    //  or -1 if more than alpha of the points would end up on one side
+    private static int slidingMidpoint(Point2D[] a, int lo, int hi, boolean vertical, double middle, double alpha)
+    {
+        Comparator<Point2D> comparator = order(vertical);
+        
+        int v = lo;
+        for (int i = lo + 1; i < hi; i++)
+        {
+            if (Math.abs(key(a[i], vertical) - middle) < Math.abs(key(a[v], vertical) - middle))
+                v = i;
+        }
+        
+        //  the points are distinct, so only the pivot compares equal to itself
+        swap(a, lo, v);
+        Point2D pivot = a[lo];
+        int lt = lo;
+        for (int i = lo + 1; i < hi; i++)
+        {
+            if (comparator.compare(a[i], pivot) < 0)
+                swap(a, ++lt, i);
+        }
+        swap(a, lo, lt);
+        
+        if (Math.max(lt - lo, hi - lt - 1) > alpha * (hi - lo))
+            return -1;
+        return lt;
+    }
+    
+    private static double key(Point2D p, boolean vertical)
+    {
+        if (vertical)
+            return p.x();
+        return p.y();
+    }
+    
+    //  the order a node splitting on the given axis puts its points in
+    static Comparator<Point2D> order(boolean vertical)
+    {
+        if (vertical)
+            return X_THEN_Y;
+        return Y_THEN_X;
+    }
+    
+    //  rearranges a[lo..hi) around its median in the order of the axis and
+    //  returns the median's index, which a balanced build splits on
+    static int median(Point2D[] a, int lo, int hi, boolean vertical)
+    {
+        int mid = lo + (hi - lo) / 2;
+        select(a, lo, hi - 1, mid, order(vertical));
+        return mid;
+    }
+    
+    private static class BuildTask extends RecursiveTask<Node>
+    {
+        private final Point2D[] a;
+        private final int lo;
+        private final int hi;
+        private final boolean vertical;
+        private final SplitRule rule;
+        private final double alpha;
+        
+        private BuildTask(Point2D[] a, int lo, int hi, boolean vertical, SplitRule rule, double alpha)
+        {
+            this.a = a;
+            this.lo = lo;
+            this.hi = hi;
+            this.vertical = vertical;
+            this.rule = rule;
+            this.alpha = alpha;
+        }
+        
+        protected Node compute()
+        {
+            return build(a, lo, hi, vertical, rule, alpha);
+        }
+    }
+    
+    //  rearranges a[lo..hi] so that a[k] holds the item that would be there
+    //  if the subarray were sorted, smaller ones before it and larger after
+    static <T> void select(T[] a, int lo, int hi, int k, Comparator<? super T> comparator)
+    {
+        while (hi > lo)
+        {
+            int j = partition(a, lo, hi, comparator);
+            if (j < k)
+                lo = j + 1;
+            else if (j > k)
+                hi = j - 1;
+            else
+                return;
+        }
+    }
+    
+    private static <T> int partition(T[] a, int lo, int hi, Comparator<? super T> comparator)
+    {
+        //  take the middle element as the pivot so sorted input stays linear
+        swap(a, lo, lo + (hi - lo) / 2);
+        T v = a[lo];
+        int i = lo;
+        int j = hi + 1;
+        while (true)
+        {
+            while (comparator.compare(a[++i], v) < 0)
+                if (i == hi) break;
+            while (comparator.compare(v, a[--j]) < 0)
+                if (j == lo) break;
+            if (i >= j)
+                break;
+            swap(a, i, j);
+        }
+        swap(a, lo, j);
+        return j;
+    }
+    
+    private static <T> void swap(T[] a, int i, int j)
+    {
+        T t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+    
     public boolean isEmpty()
     {
-        return root == null;
+        return size == 0;
     }
     
     public int size()
@@ -79,12 +465,15 @@ public class KdTree
     
     public void insert(Point2D p)
     {
+        grow(p);
+        
         //  base case: empty tree
-        if (size == 0)
+        if (root == null)
         {
-            RectHV rect = new RectHV(0.0, 0.0, 1.0, 1.0);
-            root = new Node(p, true, null, null, rect);
+            root = new Node(p, true, null, null);
             size++;
+            if (cache != null)
+                cache.inserted(p);
             return;
         }
         
@@ -93,21 +482,34 @@ public class KdTree
         //  point at root initially
         Node n = root;
        
-        Comparator<Point2D> comparator = Point2D.Y_ORDER;
+        Comparator<Point2D> comparator = Y_THEN_X;
+        int depth = 0;
         
         while (n != null)
         {
-            //  return if point is already in the tree
+            depth++;
+            //  return if point is already in the tree, bring it back if it was removed
             if (n.getPoint().equals(p))
+            {
+                if (n.deleted)
+                {
+                    n.deleted = false;
+                    n.size++;
+                    size++;
+                    updatePath(p, 1, 0);
+                    if (cache != null)
+                        cache.inserted(p);
+                }
                 return;
+            }
             //  if we are at a vertical node
             if (n.vertical())
             {
-                comparator = Point2D.X_ORDER;
+                comparator = X_THEN_Y;
             }
             else
             {
-                comparator = Point2D.Y_ORDER;
+                comparator = Y_THEN_X;
             }
             //  go to the left if point left to vertical point or below a horizontal point
             if (comparator.compare(p, n.getPoint()) < 0)
@@ -115,19 +517,8 @@ public class KdTree
                 //  if the left point is null then create new node and set it
                 if (n.getLeft() == null)
                 {
-                    RectHV rect = null;
-                    if (n.vertical())
-                    {
-                        //  point to left of current point
-                       rect = new RectHV(n.getRect().xmin(), n.getRect().ymin(), n.getPoint().x(), n.getRect().ymax());
-                    }
-                    else
-                    {
-                        //  point at bottom of current point
-                        rect = new RectHV(n.getRect().xmin(), n.getRect().ymin(), n.getRect().xmax(), n.getPoint().y());
-                    }
                     //  create new node to be inserted to 
-                    Node leftNode = new Node(p, !n.vertical(), null, null, rect);
+                    Node leftNode = new Node(p, !n.vertical(), null, null);
                     n.setLeftNode(leftNode);
                     size++;
                     break;
@@ -140,19 +531,7 @@ public class KdTree
                 //  reached end so insert new node to right
                 if (n.getRight() == null)
                 {
-                    RectHV rect = null;
-                    
-                    if (n.vertical())
-                    {
-                        //  right to vertical point
-                       rect = new RectHV(n.getPoint().x(), n.getRect().ymin(), n.getRect().xmax(), n.getRect().ymax());
-                    }
-                    else
-                    {
-                        //  top of horizontal point
-                        rect = new RectHV(n.getRect().xmin(), n.getPoint().y(), n.getRect().xmax(), n.getRect().ymax());
-                    }
-                    Node rightNode = new Node(p, !n.vertical(), null, null, rect);
+                    Node rightNode = new Node(p, !n.vertical(), null, null);
                     n.setRightNode(rightNode);
                     size++;
                     break;
@@ -160,255 +539,1529 @@ public class KdTree
                     
                 n = n.getRight();
             }
-        }  
+        }
+        
+        //  the new point is one more point in every subtree on its path
+        updatePath(p, 1, 1);
+        if (cache != null)
+            cache.inserted(p);
+        
+        //  a node this deep means some subtree above it is out of balance
+        if (tooDeep(depth, root.nodes, alpha))
+            rebalance(p);
     }
     
+    //  rebuilds the highest subtree on the path to p that is out of balance
+    private void rebalance(Point2D p)
+    {
+        Node parent = null;
+        Node n = root;
+        while (!n.getPoint().equals(p))
+        {
+            if (outOfBalance(nodes(n.getLeft()), nodes(n.getRight()), alpha))
+            {
+                rebuild(n, parent);
+                return;
+            }
+            parent = n;
+            if (goesLeft(n, p))
+                n = n.getLeft();
+            else
+                n = n.getRight();
+        }
+    }
     
-    public boolean contains(Point2D p)
+    //  stretches the bounds to take in p
+    private void grow(Point2D p)
     {
-        return containsRecursive(root, p);
+        bounds = grow(bounds, p);
     }
     
-     private boolean containsRecursive(Node node, Point2D point) {
-        if (node == null) 
-        {
-            return false;
-        }
-
-        Point2D nPoint = node.getPoint();
-        if (nPoint.equals(point)) 
+    //  the smallest rectangle holding bounds and p; just p if bounds is null
+    static RectHV grow(RectHV bounds, Point2D p)
+    {
+        if (bounds == null)
+            return new RectHV(p.x(), p.y(), p.x(), p.y());
+        if (bounds.contains(p))
+            return bounds;
+        return new RectHV(Math.min(bounds.xmin(), p.x()), Math.min(bounds.ymin(), p.y()),
+                          Math.max(bounds.xmax(), p.x()), Math.max(bounds.ymax(), p.y()));
+    }
+    
+    //  whether a node at this depth in a tree of n nodes means some subtree
+    //  above it holds more than alpha of its nodes on one side
+    static boolean tooDeep(int depth, int n, double alpha)
+    {
+        return depth > Math.log(n) / Math.log(1.0 / alpha);
+    }
+    
+    //  whether a subtree with these many nodes on each side under its root
+    //  holds more than alpha of them on one side
+    static boolean outOfBalance(int left, int right, double alpha)
+    {
+        return Math.max(left, right) > alpha * (left + right + 1);
+    }
+    
+    //  adds to the counts of every node above the one holding p
+    private void updatePath(Point2D p, int points, int addedNodes)
+    {
+        Node n = root;
+        while (!n.getPoint().equals(p))
         {
-            return true;
-        }
-
-        Comparator<Point2D> comparator = null;
-        if (node.vertical()) {
-            comparator = Point2D.X_ORDER;
+            n.size += points;
+            n.nodes += addedNodes;
+            if (goesLeft(n, p))
+                n = n.getLeft();
+            else
+                n = n.getRight();
         }
-        else
+    }
+    
+    //  is p in the left (or bottom) subtree of n?
+    private static boolean goesLeft(Node n, Point2D p)
+    {
+        return order(n.vertical()).compare(p, n.getPoint()) < 0;
+    }
+    
+    //  removes p from the tree. its node stays behind to keep the tree in
+    //  shape, and is only dropped when the subtree around it is rebuilt
+    public void remove(Point2D p)
+    {
+        Node n = root;
+        while (n != null && !n.getPoint().equals(p))
         {
-            comparator = Point2D.Y_ORDER;
+            if (goesLeft(n, p))
+                n = n.getLeft();
+            else
+                n = n.getRight();
         }
-
-        if (comparator.compare(point, nPoint) < 0) 
-        {
-            return containsRecursive(node.getLeft(), point);
-        } 
-        else 
+        if (n == null || n.deleted)
+            return;
+        
+        n.deleted = true;
+        n.size--;
+        size--;
+        updatePath(p, -1, 0);
+        if (cache != null)
+            cache.removed(p);
+        
+        //  rebuild the highest subtree on the path that is now mostly removed nodes
+        Node parent = null;
+        n = root;
+        while (n.nodes - n.size <= rebuildThreshold * n.nodes)
         {
-            return containsRecursive(node.getRight(), point);
+            if (n.getPoint().equals(p))
+                return;
+            parent = n;
+            if (goesLeft(n, p))
+                n = n.getLeft();
+            else
+                n = n.getRight();
         }
+        rebuild(n, parent);
     }
     
-public void draw() {
-    //  draw the black box points are supposed to be in
-    StdDraw.setPenColor(StdDraw.BLACK);
-    Point2D b0 = new Point2D(0.0, 0.0);
-    Point2D b1 = new Point2D(1.0, 0.0);
-    b0.drawTo(b1);
-    Point2D l0 = new Point2D(0.0, 0.0);
-    Point2D l1 = new Point2D(0.0, 1.0);
-    l0.drawTo(l1);
-    Point2D t0 = new Point2D(0.0, 1.0);
-    Point2D t1 = new Point2D(1.0, 1.0);
-    t0.drawTo(t1);
-    Point2D r0 = new Point2D(1.0, 0.0);
-    Point2D r1 = new Point2D(1.0, 1.0);
-    r0.drawTo(r1);
-    drawRecursive(root);
-}
-
-private void drawRecursive(Node node) {
-    if (node == null) {
-        return;
+    //  replaces the subtree at n, the child of parent (null for the root), by
+    //  a balanced one holding only its points that have not been removed
+    private void rebuild(Node n, Node parent)
+    {
+        Point2D[] a = new Point2D[n.size];
+        collect(n, a, 0);
+        Node rebuilt = new BuildTask(a, 0, a.length, n.vertical(), splitRule, alpha).invoke();
+        
+        //  fix up the node counts above while n is still in the tree
+        updatePath(n.getPoint(), 0, nodes(rebuilt) - n.nodes);
+        if (parent == null)
+            root = rebuilt;
+        else if (parent.getLeft() == n)
+            parent.setLeftNode(rebuilt);
+        else
+            parent.setRightNode(rebuilt);
     }
-    RectHV rect = node.getRect();
-    Point2D point = node.getPoint();
     
-    StdDraw.setPenColor(StdDraw.BLACK);
-    StdDraw.setPenRadius(0.01);
-    point.draw();
+    //  copies the points of the subtree at n that have not been removed into
+    //  a[i..]; returns the index after the last one
+    private static int collect(Node n, Point2D[] a, int i)
+    {
+        if (n == null)
+            return i;
+        if (!n.deleted)
+            a[i++] = n.getPoint();
+        i = collect(n.getLeft(), a, i);
+        return collect(n.getRight(), a, i);
+    }
     
-    if (node.vertical()) {
-        StdDraw.setPenColor(StdDraw.RED);
-        StdDraw.setPenRadius();
-        
-        Point2D bottom = new Point2D(point.x(), rect.ymin());
-        Point2D top = new Point2D(point.x(), rect.ymax());
-        bottom.drawTo(top);
-        
-        drawRecursive(node.getLeft());
-        drawRecursive(node.getRight());
-    } 
-    else
+    //  sets how far out of balance a subtree may get before insert() rebuilds
+    //  it, between 0.5 (exclusive, perfectly balanced) and 1.0 (never rebuilt)
+    public void setBalanceFactor(double alpha)
     {
-        StdDraw.setPenColor(StdDraw.BLUE);
-        StdDraw.setPenRadius();
-        
-        Point2D left = new Point2D(rect.xmin(), point.y());
-        Point2D right = new Point2D(rect.xmax(), point.y());
-        left.drawTo(right);
-        
-        drawRecursive(node.getLeft());
-        drawRecursive(node.getRight());
+        if (alpha <= 0.5 || alpha > 1.0)
+            throw new IllegalArgumentException("alpha must be in (0.5, 1]");
+        this.alpha = alpha;
     }
-}
     
-    //  TODO
-     public Iterable<Point2D> range(RectHV rect) {
-        ArrayList<Point2D> pointsInRange = new ArrayList<Point2D>();
-        rangeRecursive(pointsInRange, rect, root);
-        return pointsInRange;
+    //  fraction of the nodes in the tree that hold removed points
+    public double deadFraction()
+    {
+        if (root == null)
+            return 0.0;
+        return (double) (root.nodes - root.size) / root.nodes;
     }
-     
-     private void rangeRecursive(ArrayList<Point2D> rangeList, RectHV rect, Node n)
-     {
-         if (n == null)
-             return;
-         
-         Point2D p = n.getPoint();
-         if (rect.contains(p))
-             rangeList.add(p);
-         
-         double pointCoord = p.y();
-         double rectMin = rect.ymin();
-         double rectMax = rect.ymax();
-         if (n.vertical())
-         {
-             pointCoord = p.x();
-             rectMin = rect.xmin();
-             rectMax = rect.xmax();
-         }
-         
-         if (pointCoord > rectMin)
-             rangeRecursive(rangeList, rect, n.getLeft());
-         if (pointCoord <= rectMax)
-             rangeRecursive(rangeList, rect, n.getRight());
-     }
-     
-     
-     private Comparator<Point2D> distanceOrder(final Point2D queryPoint) {
-        return new Comparator<Point2D>() {
-            public int compare(Point2D p1, Point2D p2) {
-                double dist1 = queryPoint.distanceSquaredTo(p1);
-                double dist2 = queryPoint.distanceSquaredTo(p2);
-                if (dist1 < dist2) return -1;
-                else if (dist1 > dist2) return +1;
-                else return 0;
+    
+    //  sets the fraction of removed nodes above which a subtree is rebuilt;
+    //  1.0 turns rebuilding off
+    public void setRebuildThreshold(double threshold)
+    {
+        if (threshold < 0.0 || threshold > 1.0)
+            throw new IllegalArgumentException("threshold must be between 0 and 1");
+        rebuildThreshold = threshold;
+    }
+    
+    //  starts (from zero) or stops counting the work done by queries
+    public void setCounting(boolean on)
+    {
+        if (on)
+            counters = new Counters();
+        else
+            counters = null;
+    }
+    
+    public boolean isCounting()
+    {
+        return counters != null;
+    }
+    
+    //  makes nearest() remember up to capacity answers and reuse each for
+    //  every query in the same square of side quantum (0 for only the same
+    //  point), dropping the least recently used one when full. a reused
+    //  answer may be up to 2 * quantum * sqrt(2) farther than the true
+    //  nearest point. every insert() and remove() then also drops the
+    //  cached answers it changes. replaces any cache there was
+    public void enableCache(int capacity, double quantum)
+    {
+        cache = new NearestCache(capacity, quantum);
+    }
+    
+    public void disableCache()
+    {
+        cache = null;
+    }
+    
+    //  shape of the tree and, while counting is on, the query counts. walks
+    //  the whole tree, so it takes time linear in its nodes
+    public KdTreeStats stats()
+    {
+        int height = height(root);
+        int[] nodesPerLevel = new int[height];
+        long leafDepths = leafDepths(root, 1, nodesPerLevel);
+        int leaves = 0;
+        if (height > 0)
+            leaves = leaves(root);
+        
+        double averageLeafDepth = 0.0;
+        if (leaves > 0)
+            averageLeafDepth = (double) leafDepths / leaves;
+        
+        Counters c = counters;
+        if (c == null)
+            c = new Counters();
+        NearestCache answers = cache;
+        int cacheEntries = 0;
+        long cacheHits = 0;
+        long cacheMisses = 0;
+        if (answers != null)
+        {
+            cacheEntries = answers.size();
+            cacheHits = answers.hits();
+            cacheMisses = answers.misses();
+        }
+        return new KdTreeStats(size, nodes(root), height, leaves, averageLeafDepth, nodesPerLevel,
+                               counters != null, c.queries.sum(), c.visited.sum(), c.pruned.sum(),
+                               c.heapOperations.sum(), (int) c.maxDepth.get(),
+                               answers != null, cacheEntries, cacheHits, cacheMisses);
+    }
+    
+    private static int height(Node n)
+    {
+        if (n == null)
+            return 0;
+        return 1 + Math.max(height(n.getLeft()), height(n.getRight()));
+    }
+    
+    private static int leaves(Node n)
+    {
+        if (n == null)
+            return 0;
+        if (n.getLeft() == null && n.getRight() == null)
+            return 1;
+        return leaves(n.getLeft()) + leaves(n.getRight());
+    }
+    
+    //  counts the nodes of the subtree at n, which is at the given depth
+    //  (the root being 1), in nodesPerLevel; returns the sum of the depths
+    //  of its leaves
+    private static long leafDepths(Node n, int depth, int[] nodesPerLevel)
+    {
+        if (n == null)
+            return 0;
+        nodesPerLevel[depth - 1]++;
+        if (n.getLeft() == null && n.getRight() == null)
+            return depth;
+        return leafDepths(n.getLeft(), depth + 1, nodesPerLevel)
+            + leafDepths(n.getRight(), depth + 1, nodesPerLevel);
+    }
+    
+    //  makes the stats and counting switch of this tree readable over JMX
+    //  under the name KdTree:name=<name>. the tree is held until unregister()
+    public void register(String name)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Monitor(this), objectName(name));
+        }
+        catch (JMException e)
+        {
+            throw new IllegalArgumentException("cannot register " + name, e);
+        }
+    }
+    
+    public static void unregister(String name)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+        }
+        catch (JMException e)
+        {
+            throw new IllegalArgumentException("cannot unregister " + name, e);
+        }
+    }
+    
+    private static ObjectName objectName(String name) throws JMException
+    {
+        return new ObjectName("KdTree", "name", ObjectName.quote(name));
+    }
+    
+    //  KdTree is not thread-safe, so the attributes taken from stats() are
+    //  only reliable while the tree is not being changed
+    private static class Monitor implements KdTreeMXBean
+    {
+        private final KdTree tree;
+        
+        private Monitor(KdTree tree)
+        {
+            this.tree = tree;
+        }
+        
+        public KdTreeStats getStats()
+        {
+            return tree.stats();
+        }
+        
+        public boolean isCounting()
+        {
+            return tree.isCounting();
+        }
+        
+        public void setCounting(boolean on)
+        {
+            tree.setCounting(on);
+        }
+    }
+    
+    public boolean contains(Point2D p)
+    {
+        return containsRecursive(root, p);
+    }
+    
+     private boolean containsRecursive(Node node, Point2D point) {
+        if (node == null) 
+        {
+            return false;
+        }
+
+        Point2D nPoint = node.getPoint();
+        if (nPoint.equals(point)) 
+        {
+            return !node.deleted;
+        }
+
+        Comparator<Point2D> comparator = null;
+        if (node.vertical()) {
+            comparator = X_THEN_Y;
+        }
+        else
+        {
+            comparator = Y_THEN_X;
+        }
+
+        if (comparator.compare(point, nPoint) < 0) 
+        {
+            return containsRecursive(node.getLeft(), point);
+        } 
+        else 
+        {
+            return containsRecursive(node.getRight(), point);
+        }
+    }
+    
+public void draw() {
+    if (bounds == null) {
+        return;
+    }
+    //  draw the black box the points are in
+    StdDraw.setPenColor(StdDraw.BLACK);
+    StdDraw.setPenRadius();
+    bounds.draw();
+    drawRecursive(root, bounds.xmin(), bounds.ymin(), bounds.xmax(), bounds.ymax());
+}
+
+private void drawRecursive(Node node, double xmin, double ymin, double xmax, double ymax) {
+    if (node == null) {
+        return;
+    }
+    Point2D point = node.getPoint();
+    
+    if (!node.deleted) {
+        StdDraw.setPenColor(StdDraw.BLACK);
+        StdDraw.setPenRadius(0.01);
+        point.draw();
+    }
+    
+    if (node.vertical()) {
+        StdDraw.setPenColor(StdDraw.RED);
+        StdDraw.setPenRadius();
+        
+        Point2D bottom = new Point2D(point.x(), ymin);
+        Point2D top = new Point2D(point.x(), ymax);
+        bottom.drawTo(top);
+        
+        drawRecursive(node.getLeft(), xmin, ymin, point.x(), ymax);
+        drawRecursive(node.getRight(), point.x(), ymin, xmax, ymax);
+    } 
+    else
+    {
+        StdDraw.setPenColor(StdDraw.BLUE);
+        StdDraw.setPenRadius();
+        
+        Point2D left = new Point2D(xmin, point.y());
+        Point2D right = new Point2D(xmax, point.y());
+        left.drawTo(right);
+        
+        drawRecursive(node.getLeft(), xmin, ymin, xmax, point.y());
+        drawRecursive(node.getRight(), xmin, point.y(), xmax, ymax);
+    }
+}
+    
+     public Iterable<Point2D> range(RectHV rect) {
+        final ArrayList<Point2D> pointsInRange = new ArrayList<Point2D>();
+        range(rect, new PointVisitor() {
+            public boolean visit(Point2D p) {
+                pointsInRange.add(p);
+                return true;
             }
-        };
+        });
+        return pointsInRange;
     }
-  
+     
+     //  hands every point inside rect to the visitor until it returns false
+     public void range(RectHV rect, PointVisitor visitor)
+     {
+         if (bounds == null || !bounds.intersects(rect))
+             return;
+         Counters c = counters;
+         Tally t = null;
+         if (c != null)
+             t = new Tally();
+         rangeRecursive(visitor, rect, root, t, 1);
+         if (c != null)
+             c.add(t);
+     }
+     
+     //  returns false once the visitor has asked to stop. t, if not null,
+     //  tallies the work; n is at the given depth
+     private boolean rangeRecursive(PointVisitor visitor, RectHV rect, Node n, Tally t, int depth)
+     {
+         if (n == null)
+             return true;
+         if (t != null)
+             t.visit(depth);
+         
+         Point2D p = n.getPoint();
+         if (!n.deleted && rect.contains(p) && !visitor.visit(p))
+             return false;
+         
+         double pointCoord = p.y();
+         double rectMin = rect.ymin();
+         double rectMax = rect.ymax();
+         if (n.vertical())
+         {
+             pointCoord = p.x();
+             rectMin = rect.xmin();
+             rectMax = rect.xmax();
+         }
+         
+         //  points on the splitting line can be on either side
+         if (t != null)
+         {
+             if (pointCoord < rectMin && n.getLeft() != null)
+                 t.pruned++;
+             if (pointCoord > rectMax && n.getRight() != null)
+                 t.pruned++;
+         }
+         if (pointCoord >= rectMin && !rangeRecursive(visitor, rect, n.getLeft(), t, depth + 1))
+             return false;
+         if (pointCoord <= rectMax && !rangeRecursive(visitor, rect, n.getRight(), t, depth + 1))
+             return false;
+         return true;
+     }
+     
+     //  number of points inside rect, without collecting them
+     public int rangeCount(RectHV rect)
+     {
+         if (root == null)
+             return 0;
+         Counters c = counters;
+         Tally t = null;
+         if (c != null)
+             t = new Tally();
+         int count = rangeCount(root, rect, bounds.xmin(), bounds.ymin(), bounds.xmax(), bounds.ymax(), t, 1);
+         if (c != null)
+             c.add(t);
+         return count;
+     }
+     
+     private int rangeCount(Node n, RectHV rect, double xmin, double ymin, double xmax, double ymax,
+                            Tally t, int depth)
+     {
+         if (n == null)
+             return 0;
+         if (t != null)
+             t.visit(depth);
+         
+         //  every point of a region inside rect counts, no need to look at them
+         if (rect.xmin() <= xmin && xmax <= rect.xmax() && rect.ymin() <= ymin && ymax <= rect.ymax())
+             return n.size;
+         
+         Point2D p = n.getPoint();
+         int count = 0;
+         if (!n.deleted && rect.contains(p))
+             count++;
+         
+         if (n.vertical())
+         {
+             if (p.x() >= rect.xmin())
+                 count += rangeCount(n.getLeft(), rect, xmin, ymin, p.x(), ymax, t, depth + 1);
+             else if (t != null && n.getLeft() != null)
+                 t.pruned++;
+             if (p.x() <= rect.xmax())
+                 count += rangeCount(n.getRight(), rect, p.x(), ymin, xmax, ymax, t, depth + 1);
+             else if (t != null && n.getRight() != null)
+                 t.pruned++;
+         }
+         else
+         {
+             if (p.y() >= rect.ymin())
+                 count += rangeCount(n.getLeft(), rect, xmin, ymin, xmax, p.y(), t, depth + 1);
+             else if (t != null && n.getLeft() != null)
+                 t.pruned++;
+             if (p.y() <= rect.ymax())
+                 count += rangeCount(n.getRight(), rect, xmin, p.y(), xmax, ymax, t, depth + 1);
+             else if (t != null && n.getRight() != null)
+                 t.pruned++;
+         }
+         return count;
+     }
+     
+     
      public Point2D nearest(Point2D p)
      {
          if (size == 0)
              return null;
          
-         MinPQ<Point2D> minpt = new MinPQ<Point2D>(distanceOrder(p));
-         nearestRecursive(minpt, root, p, new RectHV(0.0, 0.0, 1.0, 1.0));
-         return minpt.min();
+         NearestCache answers = cache;
+         if (answers != null)
+         {
+             Point2D cached = answers.get(p);
+             if (cached != null)
+                 return cached;
+         }
+         
+         Counters c = counters;
+         Tally t = null;
+         if (c != null)
+             t = new Tally();
+         Node best = nearestRecursive(root, p.x(), p.y(), null,
+                                      bounds.xmin(), bounds.ymin(), bounds.xmax(), bounds.ymax(), t, 1);
+         if (c != null)
+             c.add(t);
+         if (answers != null)
+             answers.put(p, best.getPoint());
+         return best.getPoint();
+     }
+     
+     //  puts the point nearest to queries[i] in results[i] for every i. the
+     //  queries are spread over the common fork/join pool, so the tree must
+     //  not be changed until this returns. with sortQueries they are first
+     //  put in Z-order so that consecutive queries walk down the same paths
+     public void nearestAll(Point2D[] queries, Point2D[] results, boolean sortQueries)
+     {
+         double[] qx = new double[queries.length];
+         double[] qy = new double[queries.length];
+         for (int i = 0; i < queries.length; i++)
+         {
+             qx[i] = queries[i].x();
+             qy[i] = queries[i].y();
+         }
+         nearestAll(qx, qy, results, sortQueries);
+     }
+     
+     //  same as above, for the query points (qx[i], qy[i])
+     public void nearestAll(double[] qx, double[] qy, Point2D[] results, boolean sortQueries)
+     {
+         if (qx.length != qy.length || results.length < qx.length)
+             throw new IllegalArgumentException("query and result arrays must have matching lengths");
+         if (size == 0)
+         {
+             Arrays.fill(results, 0, qx.length, null);
+             return;
+         }
+         
+         int[] order = null;
+         if (sortQueries)
+             order = zOrder(qx, qy, bounds);
+         new NearestTask(this, qx, qy, order, results, 0, qx.length).invoke();
+     }
+     
+     private static class NearestTask extends RecursiveAction
+     {
+         private final KdTree tree;
+         private final double[] qx;
+         private final double[] qy;
+         private final int[] order;
+         private final Point2D[] results;
+         private final int lo;
+         private final int hi;
+         
+         private NearestTask(KdTree tree, double[] qx, double[] qy, int[] order, Point2D[] results, int lo, int hi)
+         {
+             this.tree = tree;
+             this.qx = qx;
+             this.qy = qy;
+             this.order = order;
+             this.results = results;
+             this.lo = lo;
+             this.hi = hi;
+         }
+         
+         protected void compute()
+         {
+             if (hi - lo <= QUERIES_PER_TASK)
+             {
+                 RectHV bounds = tree.bounds;
+                 Counters c = tree.counters;
+                 for (int j = lo; j < hi; j++)
+                 {
+                     int i = j;
+                     if (order != null)
+                         i = order[j];
+                     Tally t = null;
+                     if (c != null)
+                         t = new Tally();
+                     results[i] = tree.nearestRecursive(tree.root, qx[i], qy[i], null,
+                                                        bounds.xmin(), bounds.ymin(),
+                                                        bounds.xmax(), bounds.ymax(), t, 1).getPoint();
+                     if (c != null)
+                         c.add(t);
+                 }
+                 return;
+             }
+             int mid = lo + (hi - lo) / 2;
+             invokeAll(new NearestTask(tree, qx, qy, order, results, lo, mid),
+                       new NearestTask(tree, qx, qy, order, results, mid, hi));
+         }
+     }
+     
+     //  indices of the queries sorted along a Z-order curve over rect
+     private static int[] zOrder(double[] qx, double[] qy, RectHV rect)
+     {
+         long[] keys = new long[qx.length];
+         for (int i = 0; i < keys.length; i++)
+         {
+             long cell = interleave(quantize(qx[i], rect.xmin(), rect.xmax()))
+                 | (interleave(quantize(qy[i], rect.ymin(), rect.ymax())) << 1);
+             keys[i] = (cell << 32) | i;
+         }
+         Arrays.parallelSort(keys);
+         
+         int[] order = new int[keys.length];
+         for (int i = 0; i < keys.length; i++)
+             order[i] = (int) keys[i];
+         return order;
+     }
+     
+     //  maps [min, max] onto 15 bits, clamping anything outside
+     private static long quantize(double v, double min, double max)
+     {
+         if (v <= min) return 0;
+         if (v >= max) return 0x7FFF;
+         return (long) ((v - min) / (max - min) * 0x7FFF);
      }
      
-   
-     private void nearestRecursive(MinPQ<Point2D> m, Node n, Point2D p, RectHV rect)
+     //  spreads the low 16 bits of v out to the even bits
+     private static long interleave(long v)
+     {
+         v = (v | (v << 8)) & 0x00FF00FFL;
+         v = (v | (v << 4)) & 0x0F0F0F0FL;
+         v = (v | (v << 2)) & 0x33333333L;
+         v = (v | (v << 1)) & 0x55555555L;
+         return v;
+     }
+     
+     //  returns whichever is closer to (x, y): best (if not null) or the closest
+     //  point in the subtree of n, whose region is [xmin, xmax] x [ymin, ymax].
+     //  the regions of the children are only ever kept as doubles so a query
+     //  allocates nothing. t, if not null, tallies the work; n is at the
+     //  given depth
+     private Node nearestRecursive(Node n, double x, double y, Node best,
+                                   double xmin, double ymin, double xmax, double ymax,
+                                   Tally t, int depth)
      {
          if (n == null)
+             return best;
+         if (t != null)
+             t.visit(depth);
+         
+         Point2D nPoint = n.getPoint();
+         double pointx = nPoint.x();
+         double pointy = nPoint.y();
+         double bestDistance = distanceSquared(x, y, best);
+         if (!n.deleted && PointScan.distanceSquared(x, y, nPoint) < bestDistance)
+             best = n;
+         
+         if (n.vertical())
+         {
+             if (x < pointx)
+             {
+                 best = nearestRecursive(n.getLeft(), x, y, best, xmin, ymin, pointx, ymax, t, depth + 1);
+                 bestDistance = distanceSquared(x, y, best);
+                 if (PointScan.distanceSquared(x, y, pointx, ymin, xmax, ymax) < bestDistance)
+                     best = nearestRecursive(n.getRight(), x, y, best, pointx, ymin, xmax, ymax, t, depth + 1);
+                 else if (t != null && n.getRight() != null)
+                     t.pruned++;
+             }
+             else
+             {
+                 best = nearestRecursive(n.getRight(), x, y, best, pointx, ymin, xmax, ymax, t, depth + 1);
+                 bestDistance = distanceSquared(x, y, best);
+                 if (PointScan.distanceSquared(x, y, xmin, ymin, pointx, ymax) < bestDistance)
+                     best = nearestRecursive(n.getLeft(), x, y, best, xmin, ymin, pointx, ymax, t, depth + 1);
+                 else if (t != null && n.getLeft() != null)
+                     t.pruned++;
+             }
+         }
+         else
+         {
+             //  for horizontal lines
+             if (y < pointy)
+             {
+                 best = nearestRecursive(n.getLeft(), x, y, best, xmin, ymin, xmax, pointy, t, depth + 1);
+                 bestDistance = distanceSquared(x, y, best);
+                 if (PointScan.distanceSquared(x, y, xmin, pointy, xmax, ymax) < bestDistance)
+                     best = nearestRecursive(n.getRight(), x, y, best, xmin, pointy, xmax, ymax, t, depth + 1);
+                 else if (t != null && n.getRight() != null)
+                     t.pruned++;
+             }
+             else
+             {
+                 best = nearestRecursive(n.getRight(), x, y, best, xmin, pointy, xmax, ymax, t, depth + 1);
+                 bestDistance = distanceSquared(x, y, best);
+                 if (PointScan.distanceSquared(x, y, xmin, ymin, xmax, pointy) < bestDistance)
+                     best = nearestRecursive(n.getLeft(), x, y, best, xmin, ymin, xmax, pointy, t, depth + 1);
+                 else if (t != null && n.getLeft() != null)
+                     t.pruned++;
+             }
+         }
+         return best;
+     }
+     
+     //  a point at most (1 + epsilon) times as far from q as the nearest
+     //  one: a subtree is skipped unless its region is that much closer to q
+     //  than the best point found so far, which leaves out most of the
+     //  backtracking of an exact search
+     public Point2D approximateNearest(Point2D q, double epsilon)
+     {
+         return approximateNearest(q, epsilon, Integer.MAX_VALUE);
+     }
+     
+     //  the same search, but once it has looked at maxNodes nodes it stops
+     //  backtracking: it only finishes the descent it is on and returns the
+     //  closest point seen by then, whose error is not bounded. it looks at
+     //  no more than maxNodes plus the height of the tree
+     public Point2D approximateNearest(Point2D q, double epsilon, int maxNodes)
+     {
+         if (!(epsilon >= 0.0))
+             throw new IllegalArgumentException("epsilon must be nonnegative");
+         if (maxNodes < 1)
+             throw new IllegalArgumentException("maxNodes must be positive");
+         if (size == 0)
+             return null;
+         
+         Counters c = counters;
+         Search search = new Search(q.x(), q.y(), (1 + epsilon) * (1 + epsilon), maxNodes);
+         if (c != null)
+             search.tally = new Tally();
+         approximateRecursive(search, root, bounds.xmin(), bounds.ymin(), bounds.xmax(), bounds.ymax(), 1);
+         if (c != null)
+             c.add(search.tally);
+         return search.best.getPoint();
+     }
+     
+     //  state of an approximate nearest search for (x, y)
+     private static class Search
+     {
+         private final double x;
+         private final double y;
+         private final double factor;      // (1 + epsilon)^2
+         private int budget;               // nodes it may still look at
+         private Node best;
+         private double bestDistance = Double.POSITIVE_INFINITY;
+         private Tally tally;
+         
+         private Search(double x, double y, double factor, int budget)
+         {
+             this.x = x;
+             this.y = y;
+             this.factor = factor;
+             this.budget = budget;
+         }
+     }
+     
+     //  searches the subtree of n, whose region is [xmin, xmax] x [ymin, ymax]
+     //  and which is at the given depth. the near side of every node is
+     //  searched, the far side only while there is budget left
+     private void approximateRecursive(Search s, Node n, double xmin, double ymin, double xmax, double ymax,
+                                       int depth)
+     {
+         if (n == null)
+             return;
+         if (PointScan.distanceSquared(s.x, s.y, xmin, ymin, xmax, ymax) * s.factor >= s.bestDistance)
+         {
+             if (s.tally != null)
+                 s.tally.pruned++;
              return;
+         }
+         s.budget--;
+         if (s.tally != null)
+             s.tally.visit(depth);
          
          Point2D nPoint = n.getPoint();
-         m.insert(nPoint);
-         //  this is so that it doesnt make too much calls to  methods of Point2D and RectHV
-         double rectXmin = rect.xmin();
-         double rectXmax = rect.xmax();
-         double rectYmin = rect.ymin();
-         double rectYmax = rect.ymax();
          double pointx = nPoint.x();
          double pointy = nPoint.y();
+         if (!n.deleted)
+         {
+             double distance = PointScan.distanceSquared(s.x, s.y, nPoint);
+             if (distance < s.bestDistance)
+             {
+                 s.best = n;
+                 s.bestDistance = distance;
+             }
+         }
          
          if (n.vertical())
          {
-            RectHV leftRect = new RectHV(rectXmin, rectYmin,
-                    pointx, rectYmax);
-            RectHV rightRect = new RectHV(pointx, rectYmin,
-                    rectXmax, rectYmax);
-
-
-             if (p.x() < pointx)
+             if (s.x < pointx)
              {
-                 nearestRecursive(m, n.getLeft(), p, leftRect);
-                 double distanceToNearest = m.min().distanceSquaredTo(p);
-                 double distanceToRect = rightRect.distanceSquaredTo(p);
-                 if (distanceToRect < distanceToNearest) 
-                 {
-                     nearestRecursive(m, n.getRight(), p, rightRect);
-                 }
-                 /*Node nRight = n.getRight();
-                 if (nRight != null)
-                 {
-                     //  if distance to other rectangle is less than current min ditance point
-                     if (nRight.getRect().distanceSquaredTo(p) < m.min().distanceSquaredTo(p))
-                         nearestRecursive(m, n.getRight(), p);
-                 }*/
+                 approximateRecursive(s, n.getLeft(), xmin, ymin, pointx, ymax, depth + 1);
+                 if (s.budget > 0 || s.best == null)
+                     approximateRecursive(s, n.getRight(), pointx, ymin, xmax, ymax, depth + 1);
+             }
+             else
+             {
+                 approximateRecursive(s, n.getRight(), pointx, ymin, xmax, ymax, depth + 1);
+                 if (s.budget > 0 || s.best == null)
+                     approximateRecursive(s, n.getLeft(), xmin, ymin, pointx, ymax, depth + 1);
+             }
+         }
+         else
+         {
+             if (s.y < pointy)
+             {
+                 approximateRecursive(s, n.getLeft(), xmin, ymin, xmax, pointy, depth + 1);
+                 if (s.budget > 0 || s.best == null)
+                     approximateRecursive(s, n.getRight(), xmin, pointy, xmax, ymax, depth + 1);
              }
              else
              {
-                 nearestRecursive(m, n.getRight(), p, rightRect);
-                 double distanceToNearest = m.min().distanceSquaredTo(p);
-                 double distanceToRect = leftRect.distanceSquaredTo(p);
-                 if (distanceToRect < distanceToNearest) 
+                 approximateRecursive(s, n.getRight(), xmin, pointy, xmax, ymax, depth + 1);
+                 if (s.budget > 0 || s.best == null)
+                     approximateRecursive(s, n.getLeft(), xmin, ymin, xmax, pointy, depth + 1);
+             }
+         }
+     }
+     
+     //  the nearest point to q, found best first: instead of finishing the
+     //  near side of a node before looking at the far side, every far side
+     //  passed on the way down waits in a priority queue keyed by its
+     //  distance to q, and the search goes on from the closest one. good
+     //  candidates turn up sooner, and the search ends as soon as no waiting
+     //  subtree can hold anything closer
+     public Point2D nearestBestFirst(Point2D q)
+     {
+         return nearestBestFirst(q, 0.0, Integer.MAX_VALUE);
+     }
+     
+     //  the same search with the epsilon and node budget of approximateNearest()
+     public Point2D nearestBestFirst(Point2D q, double epsilon, int maxNodes)
+     {
+         if (!(epsilon >= 0.0))
+             throw new IllegalArgumentException("epsilon must be nonnegative");
+         if (maxNodes < 1)
+             throw new IllegalArgumentException("maxNodes must be positive");
+         if (size == 0)
+             return null;
+         
+         Counters c = counters;
+         Tally t = null;
+         if (c != null)
+             t = new Tally();
+         
+         double x = q.x();
+         double y = q.y();
+         double factor = (1 + epsilon) * (1 + epsilon);
+         Node best = null;
+         double bestDistance = Double.POSITIVE_INFINITY;
+         int budget = maxNodes;
+         
+         //  how far q is outside the bounds along each axis
+         double dx = 0.0;
+         double dy = 0.0;
+         if (x < bounds.xmin()) dx = bounds.xmin() - x;
+         else if (x > bounds.xmax()) dx = x - bounds.xmax();
+         if (y < bounds.ymin()) dy = bounds.ymin() - y;
+         else if (y > bounds.ymax()) dy = y - bounds.ymax();
+         
+         RegionQueue queue = REGION_QUEUE.get();
+         queue.push(dx * dx + dy * dy, root, 1, dx, dy);
+         while (!queue.isEmpty() && queue.minDistance() * factor < bestDistance && (budget > 0 || best == null))
+         {
+             Node n = queue.pop();
+             int depth = queue.depth;
+             dx = queue.dx;
+             dy = queue.dy;
+             if (t != null)
+                 t.heapOperations++;
+             
+             //  go down to a leaf, leaving the far sides in the queue. the
+             //  far side of a split is only further away along the split
+             //  axis, by the distance from q to the splitting line
+             while (n != null)
+             {
+                 budget--;
+                 if (t != null)
+                     t.visit(depth);
+                 
+                 Point2D nPoint = n.getPoint();
+                 if (!n.deleted)
+                 {
+                     double distance = PointScan.distanceSquared(x, y, nPoint);
+                     if (distance < bestDistance)
+                     {
+                         best = n;
+                         bestDistance = distance;
+                     }
+                 }
+                 
+                 Node far;
+                 double farDx = dx;
+                 double farDy = dy;
+                 if (n.vertical())
+                 {
+                     farDx = x - nPoint.x();
+                     if (farDx < 0)
+                     {
+                         far = n.getRight();
+                         n = n.getLeft();
+                     }
+                     else
+                     {
+                         far = n.getLeft();
+                         n = n.getRight();
+                     }
+                 }
+                 else
                  {
-                     nearestRecursive(m, n.getLeft(), p, leftRect);
+                     farDy = y - nPoint.y();
+                     if (farDy < 0)
+                     {
+                         far = n.getRight();
+                         n = n.getLeft();
+                     }
+                     else
+                     {
+                         far = n.getLeft();
+                         n = n.getRight();
+                     }
                  }
-                 /*Node nLeft = n.getLeft();
-                 if(nLeft != null)
+                 depth++;
+                 
+                 if (far != null)
                  {
-                     //  if distance to other rectangle is less than current min ditance point
-                     if (nLeft.getRect().distanceSquaredTo(p) < m.min().distanceSquaredTo(p))
-                         nearestRecursive(m, n.getLeft(), p);
-                 }*/
+                     double distance = farDx * farDx + farDy * farDy;
+                     if (distance * factor < bestDistance)
+                     {
+                         queue.push(distance, far, depth, farDx, farDy);
+                         if (t != null)
+                             t.heapOperations++;
+                     }
+                     else if (t != null)
+                         t.pruned++;
+                 }
              }
          }
-         else
+         queue.clear();
+         
+         if (c != null)
+             c.add(t);
+         return best.getPoint();
+     }
+     
+     //  every thread reuses its own queue, so a search allocates nothing once
+     //  the queue has grown big enough
+     private static final ThreadLocal<RegionQueue> REGION_QUEUE = ThreadLocal.withInitial(RegionQueue::new);
+     
+     //  min-priority queue of subtrees waiting to be searched, keyed by the
+     //  distance squared from the query to their regions. an entry is kept
+     //  in parallel arrays rather than as an object: its subtree, depth, and
+     //  how far the query is outside its region along x and along y. pop()
+     //  returns the subtree and leaves the rest in the fields below
+     private static class RegionQueue
+     {
+         private double[] key = new double[64];
+         private Node[] nodes = new Node[64];
+         private int[] depths = new int[64];
+         private double[] dxs = new double[64];
+         private double[] dys = new double[64];
+         private int n;
+         
+         private int depth;
+         private double dx, dy;
+         
+         private boolean isEmpty()
          {
-             //  for horizontal lines
+             return n == 0;
+         }
+         
+         private double minDistance()
+         {
+             return key[0];
+         }
+         
+         private void push(double distance, Node node, int depth, double dx, double dy)
+         {
+             if (n == key.length)
+             {
+                 key = Arrays.copyOf(key, 2 * n);
+                 nodes = Arrays.copyOf(nodes, 2 * n);
+                 depths = Arrays.copyOf(depths, 2 * n);
+                 dxs = Arrays.copyOf(dxs, 2 * n);
+                 dys = Arrays.copyOf(dys, 2 * n);
+             }
+             
+             //  move parents down into the hole until it is where the entry goes
+             int i = n++;
+             while (i > 0 && key[(i - 1) >>> 1] > distance)
+             {
+                 move((i - 1) >>> 1, i);
+                 i = (i - 1) >>> 1;
+             }
+             set(i, distance, node, depth, dx, dy);
+         }
+         
+         private Node pop()
+         {
+             Node top = nodes[0];
+             depth = depths[0];
+             dx = dxs[0];
+             dy = dys[0];
              
-             RectHV bottomRect = new RectHV(rectXmin, rectYmin, rectXmax, pointy);
-             RectHV topRect = new RectHV(rectXmin, pointy, rectXmax, rectYmax);
-             //  if point lies below the horizonal line of current search point
-             if (p.y() < pointy)
+             //  sink the last entry from the top
+             n--;
+             double distance = key[n];
+             Node last = nodes[n];
+             nodes[n] = null;
+             if (n > 0)
              {
-                 nearestRecursive(m, n.getLeft(), p, bottomRect);
-                 double distanceToNearest = m.min().distanceSquaredTo(p);
-                 double distanceToRect = topRect.distanceSquaredTo(p);
-                 if (distanceToRect < distanceToNearest)
+                 int i = 0;
+                 while (2 * i + 1 < n)
                  {
-                     nearestRecursive(m, n.getRight(), p, topRect);
+                     int j = 2 * i + 1;
+                     if (j + 1 < n && key[j + 1] < key[j])
+                         j++;
+                     if (distance <= key[j])
+                         break;
+                     move(j, i);
+                     i = j;
                  }
-                 /*
-                 Node nBottom = n.getLeft();
-                 if (nBottom != null)
-                 {
-                     if (nBottom.getRect().distanceSquaredTo(p) < m.min().distanceSquaredTo(p))
-                         nearestRecursive(m, n.getRight(), p);
-                 }*/
+                 set(i, distance, last, depths[n], dxs[n], dys[n]);
+             }
+             return top;
+         }
+         
+         private void move(int from, int to)
+         {
+             key[to] = key[from];
+             nodes[to] = nodes[from];
+             depths[to] = depths[from];
+             dxs[to] = dxs[from];
+             dys[to] = dys[from];
+         }
+         
+         private void set(int i, double distance, Node node, int depth, double dx, double dy)
+         {
+             key[i] = distance;
+             nodes[i] = node;
+             depths[i] = depth;
+             dxs[i] = dx;
+             dys[i] = dy;
+         }
+         
+         //  empties the queue, letting go of its nodes
+         private void clear()
+         {
+             Arrays.fill(nodes, 0, n, null);
+             n = 0;
+         }
+     }
+     
+     //  the k points closest to p, nearest first
+     public Iterable<Point2D> nearest(Point2D p, int k)
+     {
+         if (k < 0)
+             throw new IllegalArgumentException("k must be nonnegative");
+         
+         ArrayList<Point2D> neighbors = new ArrayList<Point2D>();
+         if (k == 0 || size == 0)
+             return neighbors;
+         
+         //  the k closest points seen so far, farthest on top; MaxPQ allocates
+         //  its capacity up front, so k is capped at the number of points
+         k = Math.min(k, size);
+         MaxPQ<Point2D> heap = new MaxPQ<Point2D>(k + 1, p.DISTANCE_TO_ORDER);
+         Counters c = counters;
+         Tally t = null;
+         if (c != null)
+             t = new Tally();
+         nearestRecursive(heap, k, root, p, bounds.xmin(), bounds.ymin(), bounds.xmax(), bounds.ymax(), t, 1);
+         if (c != null)
+             c.add(t);
+         
+         Point2D[] sorted = new Point2D[heap.size()];
+         for (int i = sorted.length - 1; i >= 0; i--)
+             sorted[i] = heap.delMax();
+         for (Point2D neighbor : sorted)
+             neighbors.add(neighbor);
+         return neighbors;
+     }
+     
+     private void nearestRecursive(MaxPQ<Point2D> heap, int k, Node n, Point2D p,
+                                   double xmin, double ymin, double xmax, double ymax,
+                                   Tally t, int depth)
+     {
+         if (n == null)
+             return;
+         if (t != null)
+             t.visit(depth);
+         
+         Point2D nPoint = n.getPoint();
+         double x = p.x();
+         double y = p.y();
+         if (!n.deleted)
+         {
+             if (heap.size() < k)
+             {
+                 heap.insert(nPoint);
+                 if (t != null)
+                     t.heapOperations++;
+             }
+             else if (PointScan.distanceSquared(x, y, nPoint) < PointScan.distanceSquared(x, y, heap.max()))
+             {
+                 heap.delMax();
+                 heap.insert(nPoint);
+                 if (t != null)
+                     t.heapOperations += 2;
+             }
+         }
+         
+         //  bounds of the near and far child regions
+         double nearXmin = xmin, nearYmin = ymin, nearXmax = xmax, nearYmax = ymax;
+         double farXmin = xmin, farYmin = ymin, farXmax = xmax, farYmax = ymax;
+         Node near = n.getLeft();
+         Node far = n.getRight();
+         if (n.vertical())
+         {
+             if (x < nPoint.x())
+             {
+                 nearXmax = nPoint.x();
+                 farXmin = nPoint.x();
+             }
+             else
+             {
+                 near = n.getRight();
+                 far = n.getLeft();
+                 nearXmin = nPoint.x();
+                 farXmax = nPoint.x();
+             }
+         }
+         else
+         {
+             if (y < nPoint.y())
+             {
+                 nearYmax = nPoint.y();
+                 farYmin = nPoint.y();
              }
              else
              {
-                 nearestRecursive(m, n.getRight(), p, topRect);
-                 double distanceToNearest = m.min().distanceSquaredTo(p);
-                 double distanceToRect = bottomRect.distanceSquaredTo(p);
-                 if (distanceToRect < distanceToNearest)
+                 near = n.getRight();
+                 far = n.getLeft();
+                 nearYmin = nPoint.y();
+                 farYmax = nPoint.y();
+             }
+         }
+         
+         nearestRecursive(heap, k, near, p, nearXmin, nearYmin, nearXmax, nearYmax, t, depth + 1);
+         if (heap.size() < k
+             || PointScan.distanceSquared(x, y, farXmin, farYmin, farXmax, farYmax)
+                < PointScan.distanceSquared(x, y, heap.max()))
+             nearestRecursive(heap, k, far, p, farXmin, farYmin, farXmax, farYmax, t, depth + 1);
+         else if (t != null && far != null)
+             t.pruned++;
+     }
+     
+     //  all the points at distance r or less from q
+     public Iterable<Point2D> withinRadius(Point2D q, double r)
+     {
+         final ArrayList<Point2D> pointsInRadius = new ArrayList<Point2D>();
+         withinRadius(q, r, new PointVisitor() {
+             public boolean visit(Point2D p) {
+                 pointsInRadius.add(p);
+                 return true;
+             }
+         });
+         return pointsInRadius;
+     }
+     
+     //  hands every point at distance r or less from q to the visitor until
+     //  it returns false
+     public void withinRadius(Point2D q, double r, PointVisitor visitor)
+     {
+         if (r < 0.0)
+             throw new IllegalArgumentException("radius must be nonnegative");
+         if (root == null)
+             return;
+         Counters c = counters;
+         Tally t = null;
+         if (c != null)
+             t = new Tally();
+         radiusRecursive(root, q.x(), q.y(), r * r, visitor,
+                         bounds.xmin(), bounds.ymin(), bounds.xmax(), bounds.ymax(), t, 1);
+         if (c != null)
+             c.add(t);
+     }
+     
+     //  number of points at distance r or less from q
+     public int countWithinRadius(Point2D q, double r)
+     {
+         if (r < 0.0)
+             throw new IllegalArgumentException("radius must be nonnegative");
+         if (root == null)
+             return 0;
+         Counters c = counters;
+         Tally t = null;
+         if (c != null)
+             t = new Tally();
+         int count = radiusCount(root, q.x(), q.y(), r * r,
+                                 bounds.xmin(), bounds.ymin(), bounds.xmax(), bounds.ymax(), t, 1);
+         if (c != null)
+             c.add(t);
+         return count;
+     }
+     
+     //  returns false once the visitor has asked to stop
+     private boolean radiusRecursive(Node n, double x, double y, double r2, PointVisitor visitor,
+                                     double xmin, double ymin, double xmax, double ymax,
+                                     Tally t, int depth)
+     {
+         if (n == null)
+             return true;
+         
+         //  skip subtrees whose region is entirely outside the circle
+         if (PointScan.distanceSquared(x, y, xmin, ymin, xmax, ymax) > r2)
+         {
+             if (t != null)
+                 t.pruned++;
+             return true;
+         }
+         if (t != null)
+             t.visit(depth);
+         
+         Point2D nPoint = n.getPoint();
+         if (!n.deleted && PointScan.distanceSquared(x, y, nPoint) <= r2 && !visitor.visit(nPoint))
+             return false;
+         
+         if (n.vertical())
+         {
+             return radiusRecursive(n.getLeft(), x, y, r2, visitor, xmin, ymin, nPoint.x(), ymax, t, depth + 1)
+                 && radiusRecursive(n.getRight(), x, y, r2, visitor, nPoint.x(), ymin, xmax, ymax, t, depth + 1);
+         }
+         return radiusRecursive(n.getLeft(), x, y, r2, visitor, xmin, ymin, xmax, nPoint.y(), t, depth + 1)
+             && radiusRecursive(n.getRight(), x, y, r2, visitor, xmin, nPoint.y(), xmax, ymax, t, depth + 1);
+     }
+     
+     private int radiusCount(Node n, double x, double y, double r2,
+                             double xmin, double ymin, double xmax, double ymax,
+                             Tally t, int depth)
+     {
+         if (n == null)
+             return 0;
+         if (PointScan.distanceSquared(x, y, xmin, ymin, xmax, ymax) > r2)
+         {
+             if (t != null)
+                 t.pruned++;
+             return 0;
+         }
+         if (t != null)
+             t.visit(depth);
+         
+         Point2D nPoint = n.getPoint();
+         int count = 0;
+         if (!n.deleted && PointScan.distanceSquared(x, y, nPoint) <= r2)
+             count++;
+         
+         if (n.vertical())
+         {
+             count += radiusCount(n.getLeft(), x, y, r2, xmin, ymin, nPoint.x(), ymax, t, depth + 1);
+             count += radiusCount(n.getRight(), x, y, r2, nPoint.x(), ymin, xmax, ymax, t, depth + 1);
+         }
+         else
+         {
+             count += radiusCount(n.getLeft(), x, y, r2, xmin, ymin, xmax, nPoint.y(), t, depth + 1);
+             count += radiusCount(n.getRight(), x, y, r2, xmin, nPoint.y(), xmax, ymax, t, depth + 1);
+         }
+         return count;
+     }
+     
+     //  distance squared from (x, y) to the point of n, infinite if there is no n
+     private static double distanceSquared(double x, double y, Node n)
+     {
+         if (n == null)
+             return Double.POSITIVE_INFINITY;
+         return PointScan.distanceSquared(x, y, n.getPoint());
+     }
+     
+     //  checks the tree against PointSET on random points of a 100 x 100
+     //  grid, so that points often share a coordinate. for every split rule
+     //  it bulk-builds a tree, then runs rounds of random inserts and
+     //  removes, each followed by random queries compared with a PointSET
+     //  of the same points
+     public static void main(String[] args)
+     {
+         int n = 2000;
+         int rounds = 20;
+         int queries = 200;
+         if (args.length > 0)
+             n = Integer.parseInt(args[0]);
+         if (args.length > 1)
+             rounds = Integer.parseInt(args[1]);
+         
+         for (SplitRule rule : SplitRule.values())
+         {
+             long start = System.nanoTime();
+             ArrayList<Point2D> points = new ArrayList<Point2D>();
+             HashSet<Point2D> distinct = new HashSet<Point2D>();
+             for (int i = 0; i < n; i++)
+             {
+                 Point2D p = gridPoint();
+                 if (distinct.add(p))
+                     points.add(p);
+             }
+             KdTree tree = new KdTree(points, rule);
+             
+             for (int round = 0; round < rounds; round++)
+             {
+                 //  inserts of random points and removes of points in the tree
+                 for (int i = 0; i < n / 4; i++)
                  {
-                     nearestRecursive(m, n.getLeft(), p, bottomRect);
+                     if (StdRandom.uniform(2) == 0)
+                     {
+                         Point2D p = gridPoint();
+                         tree.insert(p);
+                         if (distinct.add(p))
+                             points.add(p);
+                     }
+                     else if (!points.isEmpty())
+                     {
+                         int j = StdRandom.uniform(points.size());
+                         Point2D p = points.get(j);
+                         points.set(j, points.get(points.size() - 1));
+                         points.remove(points.size() - 1);
+                         distinct.remove(p);
+                         tree.remove(p);
+                     }
                  }
-                 /*
-                 Node nTop = n.getRight();
-                 if (nTop != null)
-                 {
-                     if (nTop.getRect().distanceSquaredTo(p) < m.min().distanceSquaredTo(p))
-                         nearestRecursive(m, n.getLeft(), p);
-                 }*/
+                 
+                 PointSET brute = new PointSET();
+                 for (Point2D p : points)
+                     brute.insert(p);
+                 if (tree.size() != brute.size())
+                     throw new RuntimeException(rule + ": size " + tree.size() + ", expected " + brute.size());
+                 for (int i = 0; i < queries; i++)
+                     check(tree, brute, rule);
              }
+             StdOut.printf("%s: %d rounds, %d points: ok (%.1f ms)\n",
+                           rule, rounds, tree.size(), (System.nanoTime() - start) / 1e6);
          }
+         
+         checkCollinear(40000, true);
+         checkCollinear(40000, false);
      }
-}
+     
+     //  inserts n points in order along a vertical (or horizontal) line, so
+     //  that they all tie on one axis, and throws if the tree gets deeper
+     //  than the balance factor allows or the inserts take seconds, as they
+     //  do when the ties all go to one side
+     private static void checkCollinear(int n, boolean vertical)
+     {
+         long start = System.nanoTime();
+         KdTree tree = new KdTree();
+         for (int i = 0; i < n; i++)
+         {
+             if (vertical)
+                 tree.insert(new Point2D(0.5, i));
+             else
+                 tree.insert(new Point2D(i, 0.5));
+         }
+         double millis = (System.nanoTime() - start) / 1e6;
+         
+         int height = tree.stats().getHeight();
+         int maxHeight = 1 + (int) (Math.log(n) / Math.log(1.0 / tree.alpha));
+         String line = "horizontal";
+         if (vertical)
+             line = "vertical";
+         if (height > maxHeight)
+             throw new RuntimeException(n + " points on a " + line + " line: height " + height
+                                        + ", at most " + maxHeight + " expected");
+         if (millis > 5000)
+             throw new RuntimeException(n + " points on a " + line + " line took " + millis + " ms");
+         StdOut.printf("%d points on a %s line: height %d, ok (%.1f ms)\n", n, line, height, millis);
+     }
+     
+     //  a random point of the grid
+     private static Point2D gridPoint()
+     {
+         return new Point2D(StdRandom.uniform(100) / 100.0, StdRandom.uniform(100) / 100.0);
+     }
+     
+     //  runs one random query of each kind on tree and brute, which hold the
+     //  same points, and throws if their answers differ
+     private static void check(KdTree tree, PointSET brute, SplitRule rule)
+     {
+         Point2D q = gridPoint();
+         if (StdRandom.uniform(2) == 0)
+             q = new Point2D(StdRandom.uniform(), StdRandom.uniform());
+         
+         if (tree.contains(q) != brute.contains(q))
+             throw new RuntimeException(rule + ": contains(" + q + ") is " + tree.contains(q));
+         
+         if (!brute.isEmpty()
+             && tree.nearest(q).distanceSquaredTo(q) != brute.nearest(q).distanceSquaredTo(q))
+             throw new RuntimeException(rule + ": nearest(" + q + ") is " + tree.nearest(q)
+                                        + ", expected " + brute.nearest(q));
+         
+         //  the best-first search is exact with no epsilon or budget, and
+         //  keeps the (1 + epsilon) bound with one
+         if (!brute.isEmpty())
+         {
+             double exact = brute.nearest(q).distanceSquaredTo(q);
+             Point2D bestFirst = tree.nearestBestFirst(q);
+             if (!brute.contains(bestFirst) || bestFirst.distanceSquaredTo(q) != exact)
+                 throw new RuntimeException(rule + ": nearestBestFirst(" + q + ") is " + bestFirst
+                                            + ", the nearest point is " + brute.nearest(q));
+             double epsilon = StdRandom.uniform(0, 5) / 4.0;
+             bestFirst = tree.nearestBestFirst(q, epsilon, Integer.MAX_VALUE);
+             if (!brute.contains(bestFirst)
+                 || bestFirst.distanceSquaredTo(q) > (1 + epsilon) * (1 + epsilon) * exact)
+                 throw new RuntimeException(rule + ": nearestBestFirst(" + q + ", " + epsilon + ") is "
+                                            + bestFirst + ", the nearest point is " + brute.nearest(q));
+         }
+         
+         //  a live point at most (1 + epsilon) times as far as the nearest
+         //  one, and some live point however small the node budget
+         if (!brute.isEmpty())
+         {
+             double epsilon = StdRandom.uniform(0, 5) / 4.0;
+             double exact = brute.nearest(q).distanceSquaredTo(q);
+             Point2D approximate = tree.approximateNearest(q, epsilon);
+             if (!brute.contains(approximate)
+                 || approximate.distanceSquaredTo(q) > (1 + epsilon) * (1 + epsilon) * exact)
+                 throw new RuntimeException(rule + ": approximateNearest(" + q + ", " + epsilon + ") is "
+                                            + approximate + ", the nearest point is " + brute.nearest(q));
+             int maxNodes = StdRandom.uniform(1, 10);
+             approximate = tree.approximateNearest(q, epsilon, maxNodes);
+             if (approximate == null || !brute.contains(approximate))
+                 throw new RuntimeException(rule + ": approximateNearest(" + q + ", " + epsilon + ", "
+                                            + maxNodes + ") is " + approximate);
+         }
+         
+         //  ties make the k nearest points ambiguous, but not their distances
+         int k = StdRandom.uniform(1, 20);
+         ArrayList<Double> found = new ArrayList<Double>();
+         ArrayList<Double> expected = new ArrayList<Double>();
+         for (Point2D p : tree.nearest(q, k))
+             found.add(p.distanceSquaredTo(q));
+         for (Point2D p : brute.nearest(q, k))
+             expected.add(p.distanceSquaredTo(q));
+         if (!found.equals(expected))
+             throw new RuntimeException(rule + ": nearest(" + q + ", " + k + ") at " + found + ", expected " + expected);
+         
+         //  a k past the size returns every point, nearest first
+         int all = 0;
+         double last = 0.0;
+         for (Point2D p : tree.nearest(q, Integer.MAX_VALUE))
+         {
+             if (p.distanceSquaredTo(q) < last)
+                 throw new RuntimeException(rule + ": nearest(" + q + ", " + Integer.MAX_VALUE + ") is out of order");
+             last = p.distanceSquaredTo(q);
+             all++;
+         }
+         if (all != brute.size())
+             throw new RuntimeException(rule + ": nearest(" + q + ", " + Integer.MAX_VALUE + ") found "
+                                        + all + " points, expected " + brute.size());
+         
+         double x0 = gridPoint().x();
+         double x1 = gridPoint().x();
+         double y0 = gridPoint().y();
+         double y1 = gridPoint().y();
+         RectHV rect = new RectHV(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1));
+         int inRange = 0;
+         for (Point2D p : tree.range(rect))
+             inRange++;
+         if (tree.rangeCount(rect) != brute.rangeCount(rect) || inRange != brute.rangeCount(rect))
+             throw new RuntimeException(rule + ": rangeCount(" + rect + ") is " + tree.rangeCount(rect)
+                                        + ", range() found " + inRange + ", expected " + brute.rangeCount(rect));
+         
+         double r = StdRandom.uniform(0, 20) / 100.0;
+         HashSet<Point2D> within = new HashSet<Point2D>();
+         for (Point2D p : brute.range(new RectHV(0.0, 0.0, 1.0, 1.0)))
+         {
+             if (p.distanceSquaredTo(q) <= r * r)
+                 within.add(p);
+         }
+         HashSet<Point2D> withinTree = new HashSet<Point2D>();
+         for (Point2D p : tree.withinRadius(q, r))
+             withinTree.add(p);
+         if (!withinTree.equals(within) || tree.countWithinRadius(q, r) != within.size())
+             throw new RuntimeException(rule + ": withinRadius(" + q + ", " + r + ") found "
+                                        + withinTree.size() + " points, expected " + within.size());
+     }
+}
\ No newline at end of file
@@ -0,0 +1,321 @@
+/*************************************************************************
+ *  Compilation:  javac KdTreeBenchmark.java
+ *  Execution:    java KdTreeBenchmark N Q
+ *  Dependencies: KdTree.java FlatKdTree.java PointScan.java Point2D.java
+ *                StdRandom.java StdOut.java
+ *
+ *  Build the kd-trees over N uniformly random points in the unit square
+ *  and time Q nearest neighbor queries against each of them. Also
+ *  report how many bytes of heap each query allocates, as counted by
+ *  the JVM for the current thread, and the time per query when the
+ *  whole batch is answered in parallel by KdTree.nearestAll(). The
+ *  FlatKdTree is timed with leaf buckets of 1, 2, 4, ..., 64 points.
+ *
+ *  Then KdTree.approximateNearest() is timed for a range of epsilons and
+ *  node budgets, along with its recall (the fraction of queries for
+ *  which it found a nearest point) and the mean ratio of the distance
+ *  to the point it found to the distance to the nearest one, and the
+ *  same for the best-first KdTree.nearestBestFirst().
+ *
+ *  Last, the linear scans of PointScan are timed against other ways of
+ *  writing them, nearest unrolled by hand into four independent
+ *  accumulators and count branching on every comparison, over runs of
+ *  16, 256 and 4096 of the points. When PointScanVector has been
+ *  compiled and the JVM runs with --add-modules jdk.incubator.vector,
+ *  its versions on the Vector API are timed as well.
+ *
+ *  % java KdTreeBenchmark 1000000 1000000
+ *
+ *************************************************************************/
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+public class KdTreeBenchmark {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // bytes allocated so far by the current thread
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static Point2D[] uniform(int N) {
+        Point2D[] points = new Point2D[N];
+        for (int i = 0; i < N; i++)
+            points[i] = new Point2D(StdRandom.uniform(), StdRandom.uniform());
+        return points;
+    }
+
+    private static void report(String name, int Q, long nanos, long bytes) {
+        StdOut.printf("%-24s %10.1f ns/op %10.1f bytes/op\n",
+                      name, (double) nanos / Q, (double) bytes / Q);
+    }
+
+    private static void nearest(KdTree kdtree, Point2D[] queries) {
+        int Q = queries.length;
+        for (int i = 0; i < Q; i++) kdtree.nearest(queries[i]);     // warm up
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < Q; i++) kdtree.nearest(queries[i]);
+        long nanos = System.nanoTime() - start;
+        report("KdTree.nearest", Q, nanos, allocatedBytes() - bytes);
+    }
+
+    private static void nearest(FlatKdTree kdtree, Point2D[] queries, String name) {
+        int Q = queries.length;
+        for (int i = 0; i < Q; i++) kdtree.nearest(queries[i]);     // warm up
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < Q; i++) kdtree.nearest(queries[i]);
+        long nanos = System.nanoTime() - start;
+        report(name, Q, nanos, allocatedBytes() - bytes);
+    }
+
+    private static void nearestAll(KdTree kdtree, Point2D[] queries, boolean sortQueries) {
+        int Q = queries.length;
+        Point2D[] results = new Point2D[Q];
+        kdtree.nearestAll(queries, results, sortQueries);                // warm up
+
+        long start = System.nanoTime();
+        kdtree.nearestAll(queries, results, sortQueries);
+        long nanos = System.nanoTime() - start;
+        StdOut.printf("%-24s %10.1f ns/op\n",
+                      sortQueries ? "KdTree.nearestAll sorted" : "KdTree.nearestAll", (double) nanos / Q);
+    }
+
+    private static Point2D approximate(KdTree kdtree, Point2D q, double epsilon, int maxNodes, boolean bestFirst) {
+        if (bestFirst) return kdtree.nearestBestFirst(q, epsilon, maxNodes);
+        return kdtree.approximateNearest(q, epsilon, maxNodes);
+    }
+
+    private static void approximate(KdTree kdtree, Point2D[] queries, double epsilon, int maxNodes,
+                                    boolean bestFirst) {
+        int Q = queries.length;
+        Point2D[] found = new Point2D[Q];
+        for (int i = 0; i < Q; i++) found[i] = approximate(kdtree, queries[i], epsilon, maxNodes, bestFirst);  // warm up
+
+        long start = System.nanoTime();
+        for (int i = 0; i < Q; i++) found[i] = approximate(kdtree, queries[i], epsilon, maxNodes, bestFirst);
+        long nanos = System.nanoTime() - start;
+
+        int hits = 0;
+        double ratios = 0.0;
+        for (int i = 0; i < Q; i++) {
+            double exact = kdtree.nearest(queries[i]).distanceTo(queries[i]);
+            double distance = found[i].distanceTo(queries[i]);
+            if (distance == exact) hits++;
+            if (exact > 0) ratios += distance / exact;
+            else           ratios += 1.0;
+        }
+        String budget = maxNodes == Integer.MAX_VALUE ? "" : " budget=" + maxNodes;
+        StdOut.printf("%-40s %10.1f ns/op  recall %.3f  distance ratio %.4f\n",
+                      (bestFirst ? "nearestBestFirst" : "approximateNearest") + " eps=" + epsilon + budget,
+                      (double) nanos / Q,
+                      (double) hits / Q, ratios / Q);
+    }
+
+    // one kind of scan over the points [lo, hi) for the query q, returning
+    // something that depends on every point so the JIT cannot drop it
+    private interface Scan {
+        long run(double[] xs, double[] ys, int lo, int hi, Point2D q);
+    }
+
+    private static final Scan NEAREST = new Scan() {
+        public long run(double[] xs, double[] ys, int lo, int hi, Point2D q) {
+            return PointScan.nearest(xs, ys, lo, hi, q.x(), q.y(), Double.POSITIVE_INFINITY);
+        }
+    };
+
+    private static final Scan NEAREST_UNROLLED = new Scan() {
+        public long run(double[] xs, double[] ys, int lo, int hi, Point2D q) {
+            return nearestUnrolled(xs, ys, lo, hi, q.x(), q.y(), Double.POSITIVE_INFINITY);
+        }
+    };
+
+    private static final Scan COUNT = new Scan() {
+        public long run(double[] xs, double[] ys, int lo, int hi, Point2D q) {
+            return PointScan.count(xs, ys, lo, hi, q.x() - 0.25, q.y() - 0.25, q.x() + 0.25, q.y() + 0.25);
+        }
+    };
+
+    private static final Scan COUNT_BRANCHING = new Scan() {
+        public long run(double[] xs, double[] ys, int lo, int hi, Point2D q) {
+            return countBranching(xs, ys, lo, hi, q.x() - 0.25, q.y() - 0.25, q.x() + 0.25, q.y() + 0.25);
+        }
+    };
+
+    // PointScanVector.nearest and count, looked up at run time so that this
+    // file compiles without the incubating module; null where it is missing
+    private static final MethodHandle VECTOR_NEAREST = vectorScan("nearest", double.class, double.class, double.class);
+    private static final MethodHandle VECTOR_COUNT =
+        vectorScan("count", double.class, double.class, double.class, double.class);
+
+    private static MethodHandle vectorScan(String name, Class<?>... doubles) {
+        Class<?>[] parameters = new Class<?>[4 + doubles.length];
+        parameters[0] = double[].class;
+        parameters[1] = double[].class;
+        parameters[2] = int.class;
+        parameters[3] = int.class;
+        System.arraycopy(doubles, 0, parameters, 4, doubles.length);
+        try {
+            return MethodHandles.lookup().findStatic(Class.forName("PointScanVector"), name,
+                                                     MethodType.methodType(int.class, parameters));
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static final Scan NEAREST_VECTOR = new Scan() {
+        public long run(double[] xs, double[] ys, int lo, int hi, Point2D q) {
+            try {
+                return (int) VECTOR_NEAREST.invokeExact(xs, ys, lo, hi, q.x(), q.y(), Double.POSITIVE_INFINITY);
+            }
+            catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private static final Scan COUNT_VECTOR = new Scan() {
+        public long run(double[] xs, double[] ys, int lo, int hi, Point2D q) {
+            try {
+                return (int) VECTOR_COUNT.invokeExact(xs, ys, lo, hi, q.x() - 0.25, q.y() - 0.25,
+                                                      q.x() + 0.25, q.y() + 0.25);
+            }
+            catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    // PointScan.nearest with the loop unrolled four times, each of the four
+    // keeping its own closest point so that their comparisons do not wait
+    // on each other
+    private static int nearestUnrolled(double[] xs, double[] ys, int lo, int hi,
+                                       double x, double y, double bestDistance) {
+        double d0 = bestDistance, d1 = bestDistance, d2 = bestDistance, d3 = bestDistance;
+        int b0 = -1, b1 = -1, b2 = -1, b3 = -1;
+        int i = lo;
+        for (; i + 3 < hi; i += 4) {
+            double dx0 = xs[i] - x,     dy0 = ys[i] - y,     e0 = dx0 * dx0 + dy0 * dy0;
+            double dx1 = xs[i + 1] - x, dy1 = ys[i + 1] - y, e1 = dx1 * dx1 + dy1 * dy1;
+            double dx2 = xs[i + 2] - x, dy2 = ys[i + 2] - y, e2 = dx2 * dx2 + dy2 * dy2;
+            double dx3 = xs[i + 3] - x, dy3 = ys[i + 3] - y, e3 = dx3 * dx3 + dy3 * dy3;
+            if (e0 < d0) { d0 = e0; b0 = i; }
+            if (e1 < d1) { d1 = e1; b1 = i + 1; }
+            if (e2 < d2) { d2 = e2; b2 = i + 2; }
+            if (e3 < d3) { d3 = e3; b3 = i + 3; }
+        }
+        for (; i < hi; i++) {
+            double dx = xs[i] - x, dy = ys[i] - y, e = dx * dx + dy * dy;
+            if (e < d3) { d3 = e; b3 = i; }
+        }
+
+        // the closest of the four, the first one on a tie as in PointScan
+        int best = b0;
+        double distance = d0;
+        int[] b = { b1, b2, b3 };
+        double[] d = { d1, d2, d3 };
+        for (int j = 0; j < 3; j++) {
+            if (b[j] >= 0 && (best < 0 || d[j] < distance || (d[j] == distance && b[j] < best))) {
+                best = b[j];
+                distance = d[j];
+            }
+        }
+        return best;
+    }
+
+    // PointScan.count branching on the comparisons of every point
+    private static int countBranching(double[] xs, double[] ys, int lo, int hi,
+                                      double xmin, double ymin, double xmax, double ymax) {
+        int count = 0;
+        for (int i = lo; i < hi; i++) {
+            if (xs[i] >= xmin && xs[i] <= xmax && ys[i] >= ymin && ys[i] <= ymax)
+                count++;
+        }
+        return count;
+    }
+
+    // runs the scan over consecutive runs of length points, one per query,
+    // twice: to warm up and to check against the plain version, then timed
+    private static void scan(String name, Scan scan, Scan plain, double[] xs, double[] ys,
+                             int length, Point2D[] queries) {
+        int scans = Math.min(queries.length, 50000000 / length);
+        for (int j = 0; j < scans; j++) {
+            int lo = (int) ((long) j * length % (xs.length - length + 1));
+            if (scan.run(xs, ys, lo, lo + length, queries[j]) != plain.run(xs, ys, lo, lo + length, queries[j]))
+                throw new RuntimeException(name + " disagrees with PointScan on query " + queries[j]);
+        }
+
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int j = 0; j < scans; j++) {
+            int lo = (int) ((long) j * length % (xs.length - length + 1));
+            sum += scan.run(xs, ys, lo, lo + length, queries[j]);
+        }
+        long nanos = System.nanoTime() - start;
+        StdOut.printf("%-40s %10.3f ns/point  (%d)\n",
+                      name + " n=" + length, (double) nanos / scans / length, sum);
+    }
+
+    private static void scans(Point2D[] points, Point2D[] queries) {
+        double[] xs = new double[points.length];
+        double[] ys = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            xs[i] = points[i].x();
+            ys[i] = points[i].y();
+        }
+        for (int length = 16; length <= 4096 && length <= points.length; length *= 16) {
+            scan("PointScan.nearest", NEAREST, NEAREST, xs, ys, length, queries);
+            scan("nearest unrolled", NEAREST_UNROLLED, NEAREST, xs, ys, length, queries);
+            scan("PointScan.count", COUNT, COUNT, xs, ys, length, queries);
+            scan("count branching", COUNT_BRANCHING, COUNT, xs, ys, length, queries);
+            if (VECTOR_NEAREST != null) {
+                scan("PointScanVector.nearest", NEAREST_VECTOR, NEAREST, xs, ys, length, queries);
+                scan("PointScanVector.count", COUNT_VECTOR, COUNT, xs, ys, length, queries);
+            }
+        }
+        if (VECTOR_NEAREST == null)
+            StdOut.println("PointScanVector not timed: compile it and run with --add-modules jdk.incubator.vector");
+    }
+
+    public static void main(String[] args) {
+        int N = Integer.parseInt(args[0]);
+        int Q = Integer.parseInt(args[1]);
+
+        Point2D[] points = uniform(N);
+        Point2D[] queries = uniform(Q);
+        List<Point2D> list = Arrays.asList(points);
+
+        long start = System.nanoTime();
+        KdTree kdtree = new KdTree(list);
+        StdOut.printf("%-24s %10.1f ms\n", "KdTree build", (System.nanoTime() - start) / 1e6);
+        nearest(kdtree, queries);
+        nearestAll(kdtree, queries, false);
+        nearestAll(kdtree, queries, true);
+
+        // leaf bucket sizes for the flat tree
+        for (int leafSize = 1; leafSize <= 64; leafSize *= 2)
+            nearest(new FlatKdTree(list, leafSize), queries, "FlatKdTree.nearest B=" + leafSize);
+
+        // recall against latency of the approximate search, depth first and best first
+        for (boolean bestFirst : new boolean[] { false, true }) {
+            for (double epsilon : new double[] { 0.0, 0.1, 0.5, 1.0, 2.0 })
+                approximate(kdtree, queries, epsilon, Integer.MAX_VALUE, bestFirst);
+            for (int maxNodes = 8; maxNodes <= 128; maxNodes *= 2)
+                approximate(kdtree, queries, 0.0, maxNodes, bestFirst);
+        }
+
+        // the bucket and brute-force scans against other ways of writing them
+        scans(points, queries);
+    }
+}
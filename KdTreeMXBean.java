@@ -0,0 +1,17 @@
+/*************************************************************************
+ *  Compilation:  javac KdTreeMXBean.java
+ *
+ *  Management interface of a KdTree registered with KdTree.register(),
+ *  so its stats can be read and counting turned on and off from JMX
+ *  clients such as jconsole.
+ *
+ *************************************************************************/
+
+public interface KdTreeMXBean
+{
+    KdTreeStats getStats();
+    
+    boolean isCounting();
+    
+    void setCounting(boolean on);
+}
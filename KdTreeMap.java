@@ -0,0 +1,497 @@
+/*************************************************************************
+ *  Compilation:  javac KdTreeMap.java
+ *  Execution:    java KdTreeMap [points] [rounds]
+ *  Dependencies: KdTree.java Point2D.java PointScan.java RectHV.java
+ *                StdRandom.java StdOut.java
+ *
+ *  2d-tree symbol table mapping points to values. Each node holds its
+ *  value next to its point and is itself the Map.Entry handed back by
+ *  nearest() and range(), so finding what a point stands for takes no
+ *  second lookup.
+ *
+ *  Like KdTree it can be built balanced from a whole map at once, and
+ *  put() rebuilds the highest subtree on the new point's path that gets
+ *  out of balance, so the depth stays logarithmic. The split order, the
+ *  median selection and the balance tests are KdTree's.
+ *
+ *  The main() method checks the tree against a HashMap and brute-force
+ *  nearest and range searches, on grid points that often share a
+ *  coordinate and on keys put in order along a line.
+ *
+ *************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+
+public class KdTreeMap<V>
+{
+    private static class Node<V> implements Map.Entry<Point2D, V>
+    {
+        private final Point2D point;
+        private V value;
+        private boolean isVertical;
+        private Node<V> left;
+        private Node<V> right;
+        private int size;
+
+        private Node(Point2D p, V value, boolean vertical)
+        {
+            this.point = p;
+            this.value = value;
+            this.isVertical = vertical;
+            this.size = 1;
+        }
+
+        public Point2D getKey()
+        {
+            return point;
+        }
+
+        public V getValue()
+        {
+            return value;
+        }
+
+        public V setValue(V value)
+        {
+            V old = this.value;
+            this.value = value;
+            return old;
+        }
+
+        //  equal to any Map.Entry with an equal key and value, as the
+        //  Map.Entry contract asks
+        public boolean equals(Object other)
+        {
+            if (other == this)
+                return true;
+            if (!(other instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> that = (Map.Entry<?, ?>) other;
+            return point.equals(that.getKey()) && Objects.equals(value, that.getValue());
+        }
+
+        public int hashCode()
+        {
+            return point.hashCode() ^ Objects.hashCode(value);
+        }
+
+        public String toString()
+        {
+            return point + "=" + value;
+        }
+    }
+
+    //  a subtree is out of balance when one of its sides holds more than
+    //  this fraction of its points
+    private static final double ALPHA = 0.75;
+
+    private Node<V> root;
+
+    //  smallest rectangle holding every point, null while there are none
+    private RectHV bounds;
+
+    public KdTreeMap()
+    {
+    }
+
+    //  builds a balanced tree holding all the entries of the map
+    public KdTreeMap(Map<Point2D, ? extends V> entries)
+    {
+        Node<V>[] a = newArray(entries.size());
+        int n = 0;
+        for (Map.Entry<Point2D, ? extends V> entry : entries.entrySet())
+        {
+            a[n++] = new Node<V>(entry.getKey(), entry.getValue(), true);
+            grow(entry.getKey());
+        }
+        root = build(a, 0, n, true);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <V> Node<V>[] newArray(int n)
+    {
+        return (Node<V>[]) new Node[n];
+    }
+
+    private static int size(Node<?> n)
+    {
+        if (n == null)
+            return 0;
+        return n.size;
+    }
+
+    public boolean isEmpty()
+    {
+        return root == null;
+    }
+
+    public int size()
+    {
+        return size(root);
+    }
+
+    //  links the nodes in a[lo..hi) into a balanced subtree and returns its root
+    private static <V> Node<V> build(Node<V>[] a, int lo, int hi, boolean vertical)
+    {
+        if (lo >= hi)
+            return null;
+
+        int mid = lo + (hi - lo) / 2;
+        KdTree.select(a, lo, hi - 1, mid, order(vertical));
+
+        Node<V> n = a[mid];
+        n.isVertical = vertical;
+        n.left = build(a, lo, mid, !vertical);
+        n.right = build(a, mid + 1, hi, !vertical);
+        n.size = 1 + size(n.left) + size(n.right);
+        return n;
+    }
+
+    //  orders nodes by their points in KdTree's order for the axis, ties
+    //  broken on the other coordinate, so that only equal points compare
+    //  equal and points on a splitting line can be on either side of it
+    private static final Comparator<Node<?>> X_THEN_Y = new Comparator<Node<?>>()
+    {
+        public int compare(Node<?> m, Node<?> n)
+        {
+            return KdTree.order(true).compare(m.point, n.point);
+        }
+    };
+
+    private static final Comparator<Node<?>> Y_THEN_X = new Comparator<Node<?>>()
+    {
+        public int compare(Node<?> m, Node<?> n)
+        {
+            return KdTree.order(false).compare(m.point, n.point);
+        }
+    };
+
+    private static Comparator<Node<?>> order(boolean vertical)
+    {
+        if (vertical)
+            return X_THEN_Y;
+        return Y_THEN_X;
+    }
+
+    private void grow(Point2D p)
+    {
+        bounds = KdTree.grow(bounds, p);
+    }
+
+    //  is p in the left (or bottom) subtree of n?
+    private static boolean goesLeft(Node<?> n, Point2D p)
+    {
+        return KdTree.order(n.isVertical).compare(p, n.point) < 0;
+    }
+
+    private Node<V> find(Point2D p)
+    {
+        Node<V> n = root;
+        while (n != null && !n.point.equals(p))
+        {
+            if (goesLeft(n, p))
+                n = n.left;
+            else
+                n = n.right;
+        }
+        return n;
+    }
+
+    public boolean contains(Point2D p)
+    {
+        return find(p) != null;
+    }
+
+    //  value of p, null if p is not in the tree
+    public V get(Point2D p)
+    {
+        Node<V> n = find(p);
+        if (n == null)
+            return null;
+        return n.value;
+    }
+
+    //  maps p to value, replacing any value p already had
+    public void put(Point2D p, V value)
+    {
+        Node<V> n = find(p);
+        if (n != null)
+        {
+            n.value = value;
+            return;
+        }
+
+        grow(p);
+        if (root == null)
+        {
+            root = new Node<V>(p, value, true);
+            return;
+        }
+
+        //  link a new leaf, counting it in every subtree on the way down
+        int depth = 0;
+        n = root;
+        while (true)
+        {
+            depth++;
+            n.size++;
+            if (goesLeft(n, p))
+            {
+                if (n.left == null)
+                {
+                    n.left = new Node<V>(p, value, !n.isVertical);
+                    break;
+                }
+                n = n.left;
+            }
+            else
+            {
+                if (n.right == null)
+                {
+                    n.right = new Node<V>(p, value, !n.isVertical);
+                    break;
+                }
+                n = n.right;
+            }
+        }
+
+        if (KdTree.tooDeep(depth, root.size, ALPHA))
+            rebalance(p);
+    }
+
+    //  relinks the highest subtree on the path to p that is out of balance
+    private void rebalance(Point2D p)
+    {
+        Node<V> parent = null;
+        Node<V> n = root;
+        while (!n.point.equals(p))
+        {
+            if (KdTree.outOfBalance(size(n.left), size(n.right), ALPHA))
+            {
+                Node<V>[] a = newArray(n.size);
+                collect(n, a, 0);
+                Node<V> rebuilt = build(a, 0, a.length, n.isVertical);
+                if (parent == null)
+                    root = rebuilt;
+                else if (parent.left == n)
+                    parent.left = rebuilt;
+                else
+                    parent.right = rebuilt;
+                return;
+            }
+            parent = n;
+            if (goesLeft(n, p))
+                n = n.left;
+            else
+                n = n.right;
+        }
+    }
+
+    private static <V> int collect(Node<V> n, Node<V>[] a, int i)
+    {
+        if (n == null)
+            return i;
+        a[i++] = n;
+        i = collect(n.left, a, i);
+        return collect(n.right, a, i);
+    }
+
+    //  entries whose points are inside rect
+    public Iterable<Map.Entry<Point2D, V>> range(RectHV rect)
+    {
+        ArrayList<Map.Entry<Point2D, V>> entries = new ArrayList<Map.Entry<Point2D, V>>();
+        rangeRecursive(entries, rect, root);
+        return entries;
+    }
+
+    private void rangeRecursive(ArrayList<Map.Entry<Point2D, V>> entries, RectHV rect, Node<V> n)
+    {
+        if (n == null)
+            return;
+
+        Point2D p = n.point;
+        if (rect.contains(p))
+            entries.add(n);
+
+        double pointCoord = p.y();
+        double rectMin = rect.ymin();
+        double rectMax = rect.ymax();
+        if (n.isVertical)
+        {
+            pointCoord = p.x();
+            rectMin = rect.xmin();
+            rectMax = rect.xmax();
+        }
+
+        //  points on the splitting line can be on either side
+        if (pointCoord >= rectMin)
+            rangeRecursive(entries, rect, n.left);
+        if (pointCoord <= rectMax)
+            rangeRecursive(entries, rect, n.right);
+    }
+
+    //  entry whose point is nearest to p, null if the tree is empty
+    public Map.Entry<Point2D, V> nearest(Point2D p)
+    {
+        if (root == null)
+            return null;
+        return nearestRecursive(root, p.x(), p.y(), root,
+                                bounds.xmin(), bounds.ymin(), bounds.xmax(), bounds.ymax());
+    }
+
+    //  returns whichever is closer to (x, y): best or the closest node in the
+    //  subtree of n, whose region is [xmin, xmax] x [ymin, ymax]
+    private Node<V> nearestRecursive(Node<V> n, double x, double y, Node<V> best,
+                                     double xmin, double ymin, double xmax, double ymax)
+    {
+        if (n == null || PointScan.distanceSquared(x, y, xmin, ymin, xmax, ymax)
+                         >= PointScan.distanceSquared(x, y, best.point))
+            return best;
+
+        Point2D nPoint = n.point;
+        if (PointScan.distanceSquared(x, y, nPoint) < PointScan.distanceSquared(x, y, best.point))
+            best = n;
+
+        if (n.isVertical)
+        {
+            if (x < nPoint.x())
+            {
+                best = nearestRecursive(n.left, x, y, best, xmin, ymin, nPoint.x(), ymax);
+                best = nearestRecursive(n.right, x, y, best, nPoint.x(), ymin, xmax, ymax);
+            }
+            else
+            {
+                best = nearestRecursive(n.right, x, y, best, nPoint.x(), ymin, xmax, ymax);
+                best = nearestRecursive(n.left, x, y, best, xmin, ymin, nPoint.x(), ymax);
+            }
+        }
+        else
+        {
+            if (y < nPoint.y())
+            {
+                best = nearestRecursive(n.left, x, y, best, xmin, ymin, xmax, nPoint.y());
+                best = nearestRecursive(n.right, x, y, best, xmin, nPoint.y(), xmax, ymax);
+            }
+            else
+            {
+                best = nearestRecursive(n.right, x, y, best, xmin, nPoint.y(), xmax, ymax);
+                best = nearestRecursive(n.left, x, y, best, xmin, ymin, xmax, nPoint.y());
+            }
+        }
+        return best;
+    }
+
+    public static void main(String[] args)
+    {
+        int n = 2000;
+        int rounds = 20;
+        if (args.length > 0)
+            n = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            rounds = Integer.parseInt(args[1]);
+
+        long start = System.nanoTime();
+        KdTreeMap<Integer> tree = new KdTreeMap<Integer>();
+        HashMap<Point2D, Integer> map = new HashMap<Point2D, Integer>();
+        for (int round = 0; round < rounds; round++)
+        {
+            //  puts of new keys and of keys already there, with new values
+            for (int i = 0; i < n / 4; i++)
+            {
+                Point2D p = gridPoint();
+                int value = StdRandom.uniform(1000);
+                tree.put(p, value);
+                map.put(p, value);
+            }
+            check(tree, map);
+
+            //  the same entries built all at once
+            check(new KdTreeMap<Integer>(map), map);
+        }
+        StdOut.printf("%d rounds, %d keys: ok (%.1f ms)\n", rounds, tree.size(), (System.nanoTime() - start) / 1e6);
+
+        checkCollinear(40000);
+    }
+
+    //  puts n keys in order along a vertical line, which all tie on x, and
+    //  throws if it takes seconds, as it does when ties all go one way
+    private static void checkCollinear(int n)
+    {
+        long start = System.nanoTime();
+        KdTreeMap<Integer> tree = new KdTreeMap<Integer>();
+        HashMap<Point2D, Integer> map = new HashMap<Point2D, Integer>();
+        for (int i = 0; i < n; i++)
+        {
+            Point2D p = new Point2D(0.5, i / (double) n);
+            tree.put(p, i);
+            map.put(p, i);
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        if (millis > 5000)
+            throw new RuntimeException(n + " keys on a line took " + millis + " ms");
+        check(tree, map);
+        StdOut.printf("%d keys on a line: ok (%.1f ms)\n", n, millis);
+    }
+
+    //  a random point of the grid
+    private static Point2D gridPoint()
+    {
+        return new Point2D(StdRandom.uniform(100) / 100.0, StdRandom.uniform(100) / 100.0);
+    }
+
+    //  throws unless tree maps the same keys to the same values as map and
+    //  a few random nearest and range queries match a scan of map
+    private static void check(KdTreeMap<Integer> tree, HashMap<Point2D, Integer> map)
+    {
+        if (tree.size() != map.size())
+            throw new RuntimeException("size " + tree.size() + ", expected " + map.size());
+        for (Map.Entry<Point2D, Integer> entry : map.entrySet())
+        {
+            if (!entry.getValue().equals(tree.get(entry.getKey())))
+                throw new RuntimeException("get(" + entry.getKey() + ") is " + tree.get(entry.getKey())
+                                           + ", expected " + entry.getValue());
+        }
+
+        for (int i = 0; i < 100; i++)
+        {
+            Point2D q = gridPoint();
+            if (StdRandom.uniform(2) == 0)
+                q = new Point2D(StdRandom.uniform(), StdRandom.uniform());
+            if (tree.contains(q) != map.containsKey(q) || !Objects.equals(tree.get(q), map.get(q)))
+                throw new RuntimeException("get(" + q + ") is " + tree.get(q) + ", expected " + map.get(q));
+
+            Map.Entry<Point2D, Integer> nearest = tree.nearest(q);
+            double best = Double.POSITIVE_INFINITY;
+            for (Point2D p : map.keySet())
+                best = Math.min(best, p.distanceSquaredTo(q));
+            if (nearest.getKey().distanceSquaredTo(q) != best
+                || !nearest.getValue().equals(map.get(nearest.getKey())))
+                throw new RuntimeException("nearest(" + q + ") is " + nearest + " at distance squared "
+                                           + nearest.getKey().distanceSquaredTo(q) + ", expected " + best);
+
+            //  grid corners, so that keys sit on the edges of the rectangle
+            double x0 = gridPoint().x();
+            double x1 = gridPoint().x();
+            double y0 = gridPoint().y();
+            double y1 = gridPoint().y();
+            RectHV rect = new RectHV(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1));
+            HashSet<Map.Entry<Point2D, Integer>> found = new HashSet<Map.Entry<Point2D, Integer>>();
+            for (Map.Entry<Point2D, Integer> entry : tree.range(rect))
+                found.add(entry);
+            HashSet<Map.Entry<Point2D, Integer>> expected = new HashSet<Map.Entry<Point2D, Integer>>();
+            for (Map.Entry<Point2D, Integer> entry : map.entrySet())
+            {
+                if (rect.contains(entry.getKey()))
+                    expected.add(entry);
+            }
+            if (!found.equals(expected))
+                throw new RuntimeException("range(" + rect + ") found " + found.size() + " entries, expected "
+                                           + expected.size());
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/*************************************************************************
+ *  Compilation:  javac KdTreeN.java
+ *  Execution:    java KdTreeN [points] [queries]
+ *  Dependencies: PointScan.java StdRandom.java StdOut.java
+ *
+ *  Static kd-tree over points with any number of coordinates. The
+ *  points are kept packed in one double[] (point i is coords[i*dims]
+ *  to coords[i*dims + dims - 1]) and are rearranged so that the tree
+ *  needs no nodes: the subtree over positions [lo, hi) has its root at
+ *  mid = (lo + hi) / 2, its left subtree over [lo, mid) and its right
+ *  subtree over [mid + 1, hi).
+ *
+ *  Each node splits on one axis, either cycling through the axes by
+ *  depth or taking the axis along which its points are most spread out.
+ *  Queries answer with the index the point had in the array the tree
+ *  was built from. Duplicate points are kept, each with its own index.
+ *
+ *  KdTree remains the faster choice in two dimensions.
+ *
+ *  The main() method checks the queries against a scan of the points in
+ *  1, 3 and 6 dimensions, in both build modes, on grid points that share
+ *  coordinates and are often repeated.
+ *
+ *************************************************************************/
+
+import java.util.Arrays;
+
+public class KdTreeN
+{
+    private final int dims;
+    private final int size;
+    private final double[] coords;
+    private final int[] ids;      // index in the input of the point at each position
+    private final byte[] axes;    // axis the node at each position splits on
+
+    //  builds the tree over the points packed in points, cycling through the
+    //  axes by depth
+    public KdTreeN(int dims, double[] points)
+    {
+        this(dims, points, false);
+    }
+
+    //  builds the tree over the points packed in points; with maxSpread each
+    //  node splits on the axis along which its subtree is widest
+    public KdTreeN(int dims, double[] points, boolean maxSpread)
+    {
+        if (dims < 1 || dims > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("dimension must be between 1 and " + Byte.MAX_VALUE);
+        if (points.length % dims != 0)
+            throw new IllegalArgumentException("number of coordinates is not a multiple of the dimension");
+
+        this.dims = dims;
+        this.size = points.length / dims;
+        this.coords = points.clone();
+        this.ids = new int[size];
+        this.axes = new byte[size];
+        for (int i = 0; i < size; i++)
+            ids[i] = i;
+        build(0, size, 0, maxSpread);
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int dimension()
+    {
+        return dims;
+    }
+
+    private void build(int lo, int hi, int depth, boolean maxSpread)
+    {
+        if (lo >= hi)
+            return;
+
+        int axis = depth % dims;
+        if (maxSpread)
+            axis = widestAxis(lo, hi);
+
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, axis);
+        axes[mid] = (byte) axis;
+        build(lo, mid, depth + 1, maxSpread);
+        build(mid + 1, hi, depth + 1, maxSpread);
+    }
+
+    //  axis with the largest difference between the points in [lo, hi)
+    private int widestAxis(int lo, int hi)
+    {
+        int widest = 0;
+        double widestSpread = -1.0;
+        for (int axis = 0; axis < dims; axis++)
+        {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = lo; i < hi; i++)
+            {
+                double v = coords[i * dims + axis];
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            if (max - min > widestSpread)
+            {
+                widest = axis;
+                widestSpread = max - min;
+            }
+        }
+        return widest;
+    }
+
+    //  rearranges positions [lo..hi] so that position k holds the point that
+    //  would be there if they were sorted on axis
+    private void select(int lo, int hi, int k, int axis)
+    {
+        while (hi > lo)
+        {
+            int j = partition(lo, hi, axis);
+            if (j < k)
+                lo = j + 1;
+            else if (j > k)
+                hi = j - 1;
+            else
+                return;
+        }
+    }
+
+    private int partition(int lo, int hi, int axis)
+    {
+        swap(lo, lo + (hi - lo) / 2);
+        double v = coords[lo * dims + axis];
+        int i = lo;
+        int j = hi + 1;
+        while (true)
+        {
+            while (coords[++i * dims + axis] < v)
+                if (i == hi) break;
+            while (v < coords[--j * dims + axis])
+                if (j == lo) break;
+            if (i >= j)
+                break;
+            swap(i, j);
+        }
+        swap(lo, j);
+        return j;
+    }
+
+    private void swap(int i, int j)
+    {
+        for (int axis = 0; axis < dims; axis++)
+        {
+            double t = coords[i * dims + axis];
+            coords[i * dims + axis] = coords[j * dims + axis];
+            coords[j * dims + axis] = t;
+        }
+        int t = ids[i];
+        ids[i] = ids[j];
+        ids[j] = t;
+    }
+
+    private void checkDimension(double[] q)
+    {
+        if (q.length != dims)
+            throw new IllegalArgumentException("expected " + dims + " coordinates, got " + q.length);
+    }
+
+    private double distanceSquared(int i, double[] q)
+    {
+        double distance = 0.0;
+        for (int axis = 0; axis < dims; axis++)
+        {
+            double d = coords[i * dims + axis] - q[axis];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    //  index of the point nearest to q, -1 if the tree is empty
+    public int nearest(double[] q)
+    {
+        checkDimension(q);
+        if (size == 0)
+            return -1;
+        int best = nearestRecursive(q, 0, size, 0.0, new double[dims], -1);
+        return ids[best];
+    }
+
+    //  returns the position of the closer of best (if not -1) and the nearest
+    //  point in [lo, hi). offsets[a] is how far q is outside the region of the
+    //  subtree along axis a, and region is the sum of their squares, so it is
+    //  the distance squared from q to the region
+    private int nearestRecursive(double[] q, int lo, int hi, double region, double[] offsets, int best)
+    {
+        if (lo >= hi)
+            return best;
+
+        int mid = (lo + hi) >>> 1;
+        if (best < 0 || distanceSquared(mid, q) < distanceSquared(best, q))
+            best = mid;
+
+        int axis = axes[mid];
+        double diff = q[axis] - coords[mid * dims + axis];
+        if (diff < 0)
+            best = nearestRecursive(q, lo, mid, region, offsets, best);
+        else
+            best = nearestRecursive(q, mid + 1, hi, region, offsets, best);
+
+        //  the far side is only closer along this axis, by diff
+        double old = offsets[axis];
+        double farRegion = region - old * old + diff * diff;
+        if (farRegion < distanceSquared(best, q))
+        {
+            offsets[axis] = diff;
+            if (diff < 0)
+                best = nearestRecursive(q, mid + 1, hi, farRegion, offsets, best);
+            else
+                best = nearestRecursive(q, lo, mid, farRegion, offsets, best);
+            offsets[axis] = old;
+        }
+        return best;
+    }
+
+    //  indices of the k points nearest to q, nearest first
+    public int[] nearest(double[] q, int k)
+    {
+        checkDimension(q);
+        if (k < 0)
+            throw new IllegalArgumentException("k must be nonnegative");
+        k = Math.min(k, size);
+        if (k == 0)
+            return new int[0];
+
+        //  the k nearest positions seen so far, in PointScan's max-heap
+        double[] heapDistance = new double[k + 1];
+        int[] heapPosition = new int[k + 1];
+        int n = nearestRecursive(q, 0, size, 0.0, new double[dims], heapDistance, heapPosition, 0, k);
+
+        int[] neighbors = new int[n];
+        while (n > 0)
+        {
+            neighbors[n - 1] = ids[heapPosition[1]];
+            n = PointScan.removeFarthest(heapDistance, heapPosition, n);
+        }
+        return neighbors;
+    }
+
+    //  adds the points in [lo, hi) that belong among the k nearest to the
+    //  heap holding n of them; returns the new n
+    private int nearestRecursive(double[] q, int lo, int hi, double region, double[] offsets,
+                                 double[] heapDistance, int[] heapPosition, int n, int k)
+    {
+        if (lo >= hi)
+            return n;
+
+        int mid = (lo + hi) >>> 1;
+        n = PointScan.offer(heapDistance, heapPosition, n, k, distanceSquared(mid, q), mid);
+
+        int axis = axes[mid];
+        double diff = q[axis] - coords[mid * dims + axis];
+        if (diff < 0)
+            n = nearestRecursive(q, lo, mid, region, offsets, heapDistance, heapPosition, n, k);
+        else
+            n = nearestRecursive(q, mid + 1, hi, region, offsets, heapDistance, heapPosition, n, k);
+
+        double old = offsets[axis];
+        double farRegion = region - old * old + diff * diff;
+        if (n < k || farRegion < heapDistance[1])
+        {
+            offsets[axis] = diff;
+            if (diff < 0)
+                n = nearestRecursive(q, mid + 1, hi, farRegion, offsets, heapDistance, heapPosition, n, k);
+            else
+                n = nearestRecursive(q, lo, mid, farRegion, offsets, heapDistance, heapPosition, n, k);
+            offsets[axis] = old;
+        }
+        return n;
+    }
+
+    //  indices of the points inside the box [min[0], max[0]] x ... x
+    //  [min[dims-1], max[dims-1]]
+    public int[] range(double[] min, double[] max)
+    {
+        checkDimension(min);
+        checkDimension(max);
+        IndexList found = new IndexList();
+        rangeRecursive(min, max, 0, size, found);
+        return Arrays.copyOf(found.indices, found.n);
+    }
+
+    private void rangeRecursive(double[] min, double[] max, int lo, int hi, IndexList found)
+    {
+        if (lo >= hi)
+            return;
+
+        int mid = (lo + hi) >>> 1;
+        boolean inside = true;
+        for (int axis = 0; axis < dims && inside; axis++)
+        {
+            double v = coords[mid * dims + axis];
+            inside = v >= min[axis] && v <= max[axis];
+        }
+        if (inside)
+            found.add(ids[mid]);
+
+        //  points equal to the split can be on either side
+        int axis = axes[mid];
+        double split = coords[mid * dims + axis];
+        if (min[axis] <= split)
+            rangeRecursive(min, max, lo, mid, found);
+        if (max[axis] >= split)
+            rangeRecursive(min, max, mid + 1, hi, found);
+    }
+
+    //  growable array of point indices
+    private static class IndexList
+    {
+        private int[] indices = new int[16];
+        private int n;
+
+        private void add(int index)
+        {
+            if (n == indices.length)
+                indices = Arrays.copyOf(indices, 2 * n);
+            indices[n++] = index;
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        int n = 2000;
+        int queries = 200;
+        if (args.length > 0)
+            n = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            queries = Integer.parseInt(args[1]);
+
+        for (int dims : new int[] { 1, 3, 6 })
+        {
+            for (boolean maxSpread : new boolean[] { false, true })
+            {
+                long start = System.nanoTime();
+                for (int size : new int[] { 0, 1, 2, 3, 17, n })
+                {
+                    double[] points = new double[size * dims];
+                    for (int i = 0; i < points.length; i++)
+                        points[i] = gridCoordinate();
+                    KdTreeN tree = new KdTreeN(dims, points, maxSpread);
+                    for (int i = 0; i < queries; i++)
+                        check(tree, points, dims);
+                }
+                StdOut.printf("%d dimensions, maxSpread %b: ok (%.1f ms)\n",
+                              dims, maxSpread, (System.nanoTime() - start) / 1e6);
+            }
+        }
+    }
+
+    //  a coordinate on a grid coarse enough that points share coordinates
+    //  and, in few dimensions, repeat
+    private static double gridCoordinate()
+    {
+        return StdRandom.uniform(10) / 10.0;
+    }
+
+    private static double distanceSquared(double[] points, int dims, int i, double[] q)
+    {
+        double distance = 0.0;
+        for (int axis = 0; axis < dims; axis++)
+        {
+            double d = points[i * dims + axis] - q[axis];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    //  runs one random query of each kind on tree, built from points, and
+    //  throws if the answers differ from a scan of the points
+    private static void check(KdTreeN tree, double[] points, int dims)
+    {
+        int n = points.length / dims;
+        double[] q = new double[dims];
+        for (int axis = 0; axis < dims; axis++)
+        {
+            q[axis] = gridCoordinate();
+            if (StdRandom.uniform(2) == 0)
+                q[axis] = StdRandom.uniform();
+        }
+
+        //  the distances of all the points, to check the answers against;
+        //  ties make the nearest points ambiguous, but not their distances
+        double[] distances = new double[n];
+        for (int i = 0; i < n; i++)
+            distances[i] = distanceSquared(points, dims, i, q);
+        double[] sorted = distances.clone();
+        Arrays.sort(sorted);
+
+        int nearest = tree.nearest(q);
+        if (n == 0 && nearest != -1 || n > 0 && distances[nearest] != sorted[0])
+            throw new RuntimeException("nearest(" + Arrays.toString(q) + ") is point " + nearest + " of " + n);
+
+        int k = StdRandom.uniform(1, 20);
+        if (StdRandom.uniform(4) == 0)
+            k = n + StdRandom.uniform(1, 5);
+        int[] neighbors = tree.nearest(q, k);
+        if (neighbors.length != Math.min(k, n))
+            throw new RuntimeException("nearest(" + Arrays.toString(q) + ", " + k + ") found "
+                                       + neighbors.length + " of " + n + " points");
+        for (int i = 0; i < neighbors.length; i++)
+        {
+            if (distances[neighbors[i]] != sorted[i])
+                throw new RuntimeException("nearest(" + Arrays.toString(q) + ", " + k + ") has point "
+                                           + neighbors[i] + " at distance squared " + distances[neighbors[i]]
+                                           + " in place " + i + ", expected " + sorted[i]);
+        }
+        int[] distinct = neighbors.clone();
+        Arrays.sort(distinct);
+        for (int i = 1; i < distinct.length; i++)
+        {
+            if (distinct[i] == distinct[i - 1])
+                throw new RuntimeException("nearest(" + Arrays.toString(q) + ", " + k + ") has point "
+                                           + distinct[i] + " twice");
+        }
+
+        //  box corners on the grid, so that points sit on its faces
+        double[] min = new double[dims];
+        double[] max = new double[dims];
+        for (int axis = 0; axis < dims; axis++)
+        {
+            double a = gridCoordinate();
+            double b = gridCoordinate();
+            min[axis] = Math.min(a, b);
+            max[axis] = Math.max(a, b);
+        }
+        IndexList expected = new IndexList();
+        for (int i = 0; i < n; i++)
+        {
+            boolean inside = true;
+            for (int axis = 0; axis < dims && inside; axis++)
+                inside = points[i * dims + axis] >= min[axis] && points[i * dims + axis] <= max[axis];
+            if (inside)
+                expected.add(i);
+        }
+        int[] found = tree.range(min, max);
+        Arrays.sort(found);
+        if (!Arrays.equals(found, Arrays.copyOf(expected.indices, expected.n)))
+            throw new RuntimeException("range(" + Arrays.toString(min) + ", " + Arrays.toString(max) + ") found "
+                                       + found.length + " points, expected " + expected.n);
+    }
+}
@@ -0,0 +1,195 @@
+/*************************************************************************
+ *  Compilation:  javac KdTreeStats.java
+ *
+ *  Snapshot of the shape of a KdTree and of the work its queries have
+ *  done, as returned by KdTree.stats(). Depths count the root as 1.
+ *
+ *  The query counts are kept only while KdTree.setCounting(true) is in
+ *  effect; otherwise isCounting() is false and they are all zero. The
+ *  same goes for the cache counts and KdTree.enableCache().
+ *
+ *************************************************************************/
+
+import java.util.Arrays;
+import javax.management.openmbean.CompositeData;
+
+public class KdTreeStats
+{
+    private final int size;
+    private final int nodes;
+    private final int height;
+    private final int leaves;
+    private final double averageLeafDepth;
+    private final int[] nodesPerLevel;
+    
+    private final boolean counting;
+    private final long queries;
+    private final long nodesVisited;
+    private final long subtreesPruned;
+    private final long heapOperations;
+    private final int maxDepthReached;
+    
+    private final boolean caching;
+    private final int cacheEntries;
+    private final long cacheHits;
+    private final long cacheMisses;
+    
+    KdTreeStats(int size, int nodes, int height, int leaves, double averageLeafDepth, int[] nodesPerLevel,
+                boolean counting, long queries, long nodesVisited, long subtreesPruned,
+                long heapOperations, int maxDepthReached,
+                boolean caching, int cacheEntries, long cacheHits, long cacheMisses)
+    {
+        this.size = size;
+        this.nodes = nodes;
+        this.height = height;
+        this.leaves = leaves;
+        this.averageLeafDepth = averageLeafDepth;
+        this.nodesPerLevel = nodesPerLevel;
+        this.counting = counting;
+        this.queries = queries;
+        this.nodesVisited = nodesVisited;
+        this.subtreesPruned = subtreesPruned;
+        this.heapOperations = heapOperations;
+        this.maxDepthReached = maxDepthReached;
+        this.caching = caching;
+        this.cacheEntries = cacheEntries;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+    }
+    
+    //  number of points in the tree
+    public int getSize()
+    {
+        return size;
+    }
+    
+    //  number of nodes, counting those of removed points still in the tree
+    public int getNodes()
+    {
+        return nodes;
+    }
+    
+    //  depth of the deepest node, 0 for an empty tree
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    public int getLeaves()
+    {
+        return leaves;
+    }
+    
+    public double getAverageLeafDepth()
+    {
+        return averageLeafDepth;
+    }
+    
+    //  element d is the number of nodes at depth d + 1
+    public int[] getNodesPerLevel()
+    {
+        return nodesPerLevel.clone();
+    }
+    
+    public boolean isCounting()
+    {
+        return counting;
+    }
+    
+    //  queries answered since counting was turned on
+    public long getQueries()
+    {
+        return queries;
+    }
+    
+    //  nodes those queries looked at
+    public long getNodesVisited()
+    {
+        return nodesVisited;
+    }
+    
+    //  subtrees those queries ruled out without looking inside
+    public long getSubtreesPruned()
+    {
+        return subtreesPruned;
+    }
+    
+    //  insertions into and deletions from the heap of k-nearest queries,
+    //  and pushes and pops of the queue of nearestBestFirst() searches
+    public long getHeapOperations()
+    {
+        return heapOperations;
+    }
+    
+    //  depth of the deepest node any of those queries looked at
+    public int getMaxDepthReached()
+    {
+        return maxDepthReached;
+    }
+    
+    //  whether nearest() answers go through a cache
+    public boolean isCaching()
+    {
+        return caching;
+    }
+    
+    //  answers held in the cache
+    public int getCacheEntries()
+    {
+        return cacheEntries;
+    }
+    
+    //  nearest() calls answered from the cache since it was enabled
+    public long getCacheHits()
+    {
+        return cacheHits;
+    }
+    
+    //  nearest() calls that had to search the tree since it was enabled
+    public long getCacheMisses()
+    {
+        return cacheMisses;
+    }
+    
+    //  fraction of nearest() calls answered from the cache
+    public double getCacheHitRate()
+    {
+        if (cacheHits + cacheMisses == 0)
+            return 0.0;
+        return (double) cacheHits / (cacheHits + cacheMisses);
+    }
+    
+    //  turns the stats back from the form JMX sends them in
+    public static KdTreeStats from(CompositeData data)
+    {
+        return new KdTreeStats((Integer) data.get("size"), (Integer) data.get("nodes"),
+                               (Integer) data.get("height"), (Integer) data.get("leaves"),
+                               (Double) data.get("averageLeafDepth"), (int[]) data.get("nodesPerLevel"),
+                               (Boolean) data.get("counting"), (Long) data.get("queries"),
+                               (Long) data.get("nodesVisited"), (Long) data.get("subtreesPruned"),
+                               (Long) data.get("heapOperations"), (Integer) data.get("maxDepthReached"),
+                               (Boolean) data.get("caching"), (Integer) data.get("cacheEntries"),
+                               (Long) data.get("cacheHits"), (Long) data.get("cacheMisses"));
+    }
+    
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("size %d, nodes %d, height %d, average leaf depth %.2f\n",
+                               size, nodes, height, averageLeafDepth));
+        s.append("nodes per level " + Arrays.toString(nodesPerLevel) + "\n");
+        if (counting && queries > 0)
+        {
+            s.append(String.format("%d queries, %.1f nodes visited, %.1f subtrees pruned, "
+                                   + "%.1f heap operations per query, max depth %d\n",
+                                   queries, (double) nodesVisited / queries, (double) subtreesPruned / queries,
+                                   (double) heapOperations / queries, maxDepthReached));
+        }
+        if (caching)
+        {
+            s.append(String.format("cache of %d answers, %d hits, %d misses, hit rate %.3f\n",
+                                   cacheEntries, cacheHits, cacheMisses, getCacheHitRate()));
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,289 @@
+/*************************************************************************
+ *  Compilation:  javac KdTreeSuite.java
+ *  Execution:    java KdTreeSuite maxN Q [dataset ...]
+ *  Dependencies: KdTree.java PointSET.java Point2D.java RectHV.java
+ *                StdRandom.java StdOut.java
+ *
+ *  Times insert, contains, range, rangeCount and nearest on KdTree and
+ *  on the brute-force PointSET, and the best-first
+ *  KdTree.nearestBestFirst(), for each dataset and for N = 1000, 10000,
+ *  ... up to maxN points. A range call includes going through the
+ *  points it returns; rangeCount only counts them.
+ *  Every operation is run once over all its inputs to warm up the JIT,
+ *  then timed one call at a time. The table gives throughput, the 50th,
+ *  90th and 99th percentile and the maximum time of a single call, and
+ *  the heap bytes allocated per call as counted by the JVM for the
+ *  current thread.
+ *
+ *  Datasets:
+ *    uniform      independent uniformly random points in the unit square
+ *    clustered    points spread normally around 100 random centers
+ *    sorted       points on the diagonal, in increasing order
+ *    duplicates   each point drawn from a pool of N/10 distinct points
+ *    roads        points along 20 long, thin random segments, squashed
+ *                 to a strip 1/20 as tall as it is wide
+ *
+ *  Range, rangeCount and nearest are also timed on trees bulk-built from the
+ *  dataset with each KdTree.SplitRule, both with the usual queries and
+ *  with queries "on data", next to random points of the dataset.
+ *
+ *  Range queries are squares that hold about 16 points of the uniform
+ *  dataset. PointSET is skipped above 100000 points, where a query
+ *  scans too many points to finish in reasonable time. N = 10^7 needs
+ *  a few GB of heap (-Xmx4g).
+ *
+ *  % java KdTreeSuite 1000000 100000 uniform clustered
+ *
+ *************************************************************************/
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+public class KdTreeSuite {
+
+    private static final String[] DATASETS = { "uniform", "clustered", "sorted", "duplicates", "roads" };
+
+    // largest N the brute-force PointSET is run on
+    private static final int BRUTE_LIMIT = 100000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // results of the timed calls are summed here so the JIT cannot drop them
+    private static long sink;
+
+    // one call of the operation being timed, on its i-th input
+    private interface Operation {
+        int run(int i);
+    }
+
+    // bytes allocated so far by the current thread
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static Point2D[] dataset(String name, int N) {
+        Point2D[] points = new Point2D[N];
+        if (name.equals("uniform")) {
+            for (int i = 0; i < N; i++)
+                points[i] = new Point2D(StdRandom.uniform(), StdRandom.uniform());
+        }
+        else if (name.equals("clustered")) {
+            Point2D[] centers = dataset("uniform", 100);
+            for (int i = 0; i < N; i++) {
+                Point2D center = centers[StdRandom.uniform(centers.length)];
+                points[i] = new Point2D(StdRandom.gaussian(center.x(), 0.01),
+                                        StdRandom.gaussian(center.y(), 0.01));
+            }
+        }
+        else if (name.equals("sorted")) {
+            for (int i = 0; i < N; i++)
+                points[i] = new Point2D((double) i / N, (double) i / N);
+        }
+        else if (name.equals("duplicates")) {
+            Point2D[] pool = dataset("uniform", Math.max(1, N / 10));
+            for (int i = 0; i < N; i++)
+                points[i] = pool[StdRandom.uniform(pool.length)];
+        }
+        else if (name.equals("roads")) {
+            Point2D[] ends = dataset("uniform", 40);
+            for (int i = 0; i < N; i++) {
+                int road = StdRandom.uniform(20);
+                Point2D a = ends[2 * road], b = ends[2 * road + 1];
+                double t = StdRandom.uniform();
+                points[i] = new Point2D(a.x() + t * (b.x() - a.x()) + StdRandom.gaussian(0, 0.0001),
+                                        (a.y() + t * (b.y() - a.y())) / 20 + StdRandom.gaussian(0, 0.0001));
+            }
+        }
+        else throw new IllegalArgumentException("unknown dataset " + name);
+        return points;
+    }
+
+    // runs warmUp over all count inputs, then times op on each
+    private static void measure(String label, int count, Operation warmUp, Operation op) {
+        for (int i = 0; i < count; i++) sink += warmUp.run(i);
+
+        long[] nanos = new long[count];
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long t = System.nanoTime();
+            sink += op.run(i);
+            nanos[i] = System.nanoTime() - t;
+        }
+        long total = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+
+        Arrays.sort(nanos);
+        StdOut.printf("%-52s %12.0f %9d %9d %9d %10d %10.1f\n", label,
+                      count / (total / 1e9), percentile(nanos, 0.50), percentile(nanos, 0.90),
+                      percentile(nanos, 0.99), nanos[count - 1], (double) bytes / count);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+    }
+
+    private static Operation insert(final KdTree kdtree, final Point2D[] points) {
+        return new Operation() {
+            public int run(int i) {
+                kdtree.insert(points[i]);
+                return 0;
+            }
+        };
+    }
+
+    private static Operation insert(final PointSET brute, final Point2D[] points) {
+        return new Operation() {
+            public int run(int i) {
+                brute.insert(points[i]);
+                return 0;
+            }
+        };
+    }
+
+    private static void run(String name, int N, int Q) {
+        Point2D[] points = dataset(name, N);
+        Point2D[] queries = dataset("uniform", Q);
+
+        // half of the contains() queries hit a point of the dataset
+        final Point2D[] probes = new Point2D[Q];
+        for (int i = 0; i < Q; i++)
+            probes[i] = i % 2 == 0 ? points[StdRandom.uniform(N)] : queries[i];
+
+        final RectHV[] rects = new RectHV[Q];
+        double half = Math.sqrt(16.0 / N) / 2;
+        for (int i = 0; i < Q; i++) {
+            Point2D q = queries[i];
+            rects[i] = new RectHV(q.x() - half, q.y() - half, q.x() + half, q.y() + half);
+        }
+
+        String prefix = name + " N=" + N + " ";
+        final KdTree kdtree = new KdTree();
+        measure(prefix + "KdTree.insert", N, insert(new KdTree(), points), insert(kdtree, points));
+        measure(prefix + "KdTree.range", Q, range(kdtree, rects), range(kdtree, rects));
+        measure(prefix + "KdTree.rangeCount", Q, rangeCount(kdtree, rects), rangeCount(kdtree, rects));
+        measure(prefix + "KdTree.nearest", Q, nearest(kdtree, queries), nearest(kdtree, queries));
+        measure(prefix + "KdTree.nearestBestFirst", Q, nearestBestFirst(kdtree, queries),
+                nearestBestFirst(kdtree, queries));
+        measure(prefix + "KdTree.contains", Q, contains(kdtree, probes), contains(kdtree, probes));
+
+        // queries on the data itself, such as positions to snap to a road
+        final Point2D[] near = new Point2D[Q];
+        final RectHV[] nearRects = new RectHV[Q];
+        for (int i = 0; i < Q; i++) {
+            Point2D p = points[StdRandom.uniform(N)];
+            near[i] = new Point2D(p.x() + StdRandom.gaussian(0, 0.001), p.y() + StdRandom.gaussian(0, 0.001));
+            nearRects[i] = new RectHV(near[i].x() - half, near[i].y() - half, near[i].x() + half, near[i].y() + half);
+        }
+        for (KdTree.SplitRule rule : KdTree.SplitRule.values()) {
+            KdTree built = new KdTree(Arrays.asList(points), rule);
+            measure(prefix + rule + " range", Q, range(built, rects), range(built, rects));
+            measure(prefix + rule + " rangeCount", Q, rangeCount(built, rects), rangeCount(built, rects));
+            measure(prefix + rule + " nearest", Q, nearest(built, queries), nearest(built, queries));
+            measure(prefix + rule + " range on data", Q, range(built, nearRects), range(built, nearRects));
+            measure(prefix + rule + " nearest on data", Q, nearest(built, near), nearest(built, near));
+        }
+
+        if (N > BRUTE_LIMIT) return;
+        final PointSET brute = new PointSET();
+        measure(prefix + "PointSET.insert", N, insert(new PointSET(), points), insert(brute, points));
+        measure(prefix + "PointSET.contains", Q, contains(brute, probes), contains(brute, probes));
+        measure(prefix + "PointSET.range", Q, range(brute, rects), range(brute, rects));
+        measure(prefix + "PointSET.rangeCount", Q, rangeCount(brute, rects), rangeCount(brute, rects));
+        measure(prefix + "PointSET.nearest", Q, nearest(brute, queries), nearest(brute, queries));
+    }
+
+    private static Operation contains(final KdTree kdtree, final Point2D[] probes) {
+        return new Operation() {
+            public int run(int i) {
+                return kdtree.contains(probes[i]) ? 1 : 0;
+            }
+        };
+    }
+
+    private static Operation contains(final PointSET brute, final Point2D[] probes) {
+        return new Operation() {
+            public int run(int i) {
+                return brute.contains(probes[i]) ? 1 : 0;
+            }
+        };
+    }
+
+    // goes through the points range() returns, as a caller would
+    private static Operation range(final KdTree kdtree, final RectHV[] rects) {
+        return new Operation() {
+            public int run(int i) {
+                int sum = 0;
+                for (Point2D p : kdtree.range(rects[i]))
+                    sum += p.hashCode();
+                return sum;
+            }
+        };
+    }
+
+    private static Operation range(final PointSET brute, final RectHV[] rects) {
+        return new Operation() {
+            public int run(int i) {
+                int sum = 0;
+                for (Point2D p : brute.range(rects[i]))
+                    sum += p.hashCode();
+                return sum;
+            }
+        };
+    }
+
+    private static Operation rangeCount(final KdTree kdtree, final RectHV[] rects) {
+        return new Operation() {
+            public int run(int i) {
+                return kdtree.rangeCount(rects[i]);
+            }
+        };
+    }
+
+    private static Operation rangeCount(final PointSET brute, final RectHV[] rects) {
+        return new Operation() {
+            public int run(int i) {
+                return brute.rangeCount(rects[i]);
+            }
+        };
+    }
+
+    private static Operation nearest(final KdTree kdtree, final Point2D[] queries) {
+        return new Operation() {
+            public int run(int i) {
+                return kdtree.nearest(queries[i]).hashCode();
+            }
+        };
+    }
+
+    private static Operation nearestBestFirst(final KdTree kdtree, final Point2D[] queries) {
+        return new Operation() {
+            public int run(int i) {
+                return kdtree.nearestBestFirst(queries[i]).hashCode();
+            }
+        };
+    }
+
+    private static Operation nearest(final PointSET brute, final Point2D[] queries) {
+        return new Operation() {
+            public int run(int i) {
+                return brute.nearest(queries[i]).hashCode();
+            }
+        };
+    }
+
+    public static void main(String[] args) {
+        int maxN = Integer.parseInt(args[0]);
+        int Q = Integer.parseInt(args[1]);
+        String[] datasets = DATASETS;
+        if (args.length > 2) datasets = Arrays.copyOfRange(args, 2, args.length);
+
+        StdOut.printf("%-52s %12s %9s %9s %9s %10s %10s\n",
+                      "", "ops/s", "p50 ns", "p90 ns", "p99 ns", "max ns", "bytes/op");
+        for (String name : datasets)
+            for (long N = 1000; N <= maxN; N *= 10)
+                run(name, (int) N, Q);
+        StdOut.println("(checksum " + sink + ")");
+    }
+}
@@ -0,0 +1,263 @@
+/*************************************************************************
+ *  Compilation:  javac MappedKdTree.java
+ *  Execution:    java MappedKdTree input.txt tree.bin
+ *                java MappedKdTree [queries]
+ *  Dependencies: FlatKdTree.java Point2D.java RectHV.java PointFile.java
+ *                PointSET.java StdRandom.java StdOut.java
+ *
+ *  A FlatKdTree saved by FlatKdTree.write() and queried where it lies
+ *  in the file. The file is memory-mapped, so opening it reads nothing
+ *  but the header, the pages a query touches are loaded by the OS on
+ *  demand, and every JVM that opens the same file shares them through
+ *  the page cache instead of holding its own copy on the heap. The
+ *  queries are FlatKdTree's own, reading the mapped arrays through
+ *  their buffers.
+ *
+ *  The main() method reads points from a file in either PointFile format
+ *  and writes the tree over them to a second file. Run without files, it
+ *  writes trees of many small and a few larger sizes at several leaf
+ *  sizes, maps them back and checks the file layout and the queries of
+ *  both trees against a PointSET.
+ *
+ *  % java MappedKdTree input1M.txt input1M.bin
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class MappedKdTree
+{
+    //  the FlatKdTree over the mapped arrays, which answers the queries
+    private final FlatKdTree tree;
+
+    //  maps the tree saved in the file
+    public MappedKdTree(String filename) throws IOException
+    {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try
+        {
+            if (channel.size() < 16)
+                throw new IllegalArgumentException(filename + " is not a kd-tree file");
+            ByteBuffer header = map(channel, 0, 16);
+            if (header.getInt(0) != FlatKdTree.MAGIC)
+                throw new IllegalArgumentException(filename + " is not a kd-tree file");
+            if (header.getInt(4) != FlatKdTree.VERSION)
+                throw new IllegalArgumentException(filename + " has unsupported version " + header.getInt(4));
+
+            //  every node holds a point, so there are never more than size
+            int size = header.getInt(8);
+            int buckets = header.getInt(12);
+            if (size < 0 || buckets < 0 || buckets > size)
+                throw new IllegalArgumentException(filename + " has " + buckets + " nodes for " + size + " points");
+            long offset = FlatKdTree.dataOffset(buckets);
+            if (channel.size() < offset + 16L * size)
+                throw new IllegalArgumentException(filename + " is truncated");
+
+            //  the arrays are mapped separately, each may be up to 2GB
+            IntBuffer start = map(channel, 16, 4L * (buckets + 2)).asIntBuffer();
+            DoubleBuffer xs = map(channel, offset, 8L * size).asDoubleBuffer();
+            DoubleBuffer ys = map(channel, offset + 8L * size, 8L * size).asDoubleBuffer();
+            tree = new FlatKdTree(xs, ys, start, size, buckets);
+        }
+        finally
+        {
+            //  the mappings stay valid after the channel is closed
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long length) throws IOException
+    {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public boolean isEmpty()
+    {
+        return tree.isEmpty();
+    }
+
+    public int size()
+    {
+        return tree.size();
+    }
+
+    public boolean contains(Point2D p)
+    {
+        return tree.contains(p);
+    }
+
+    public Iterable<Point2D> range(RectHV rect)
+    {
+        return tree.range(rect);
+    }
+
+    //  number of points inside rect
+    public int rangeCount(RectHV rect)
+    {
+        return tree.rangeCount(rect);
+    }
+
+    public Point2D nearest(Point2D p)
+    {
+        return tree.nearest(p);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 2)
+        {
+            PointFile points = PointFile.read(args[0]);
+            new FlatKdTree(points.x(), points.y()).write(args[1]);
+            MappedKdTree tree = new MappedKdTree(args[1]);
+            StdOut.println("wrote " + tree.size() + " points to " + args[1]);
+            return;
+        }
+
+        int queries = 100;
+        if (args.length > 0)
+            queries = Integer.parseInt(args[0]);
+
+        Path file = Files.createTempFile("MappedKdTree", ".bin");
+        try
+        {
+            long start = System.nanoTime();
+            int trees = 0;
+            for (int leafSize : new int[] { 1, 2, 3, 16, 64 })
+            {
+                for (int n = 0; n <= 40; n++)
+                {
+                    check(file, n, leafSize, queries);
+                    trees++;
+                }
+                for (int n : new int[] { 100, 1000, 5000 })
+                {
+                    check(file, n, leafSize, queries);
+                    trees++;
+                }
+            }
+            StdOut.printf("%d trees written, mapped and queried: ok (%.1f ms)\n",
+                          trees, (System.nanoTime() - start) / 1e6);
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    //  a random point of a grid coarse enough that points repeat and share
+    //  coordinates with the splits
+    private static Point2D gridPoint()
+    {
+        return new Point2D(StdRandom.uniform(30) / 30.0, StdRandom.uniform(30) / 30.0);
+    }
+
+    //  writes a FlatKdTree over n random grid points to file, checks the
+    //  layout of the file and that a truncated copy is refused, then runs
+    //  random queries on the tree, the mapped tree and a PointSET and
+    //  throws if any two answers differ
+    private static void check(Path file, int n, int leafSize, int queries) throws IOException
+    {
+        double[] x = new double[n];
+        double[] y = new double[n];
+        PointSET brute = new PointSET();
+        for (int i = 0; i < n; i++)
+        {
+            Point2D p = gridPoint();
+            x[i] = p.x();
+            y[i] = p.y();
+            brute.insert(p);
+        }
+        FlatKdTree flat = new FlatKdTree(x, y, leafSize);
+        flat.write(file.toString());
+        MappedKdTree mapped = new MappedKdTree(file.toString());
+        String tree = n + " points, leaf size " + leafSize;
+
+        //  the header, then start[], then zeros up to the coordinates
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int buckets = header.getInt(12);
+        long offset = FlatKdTree.dataOffset(buckets);
+        if (header.getInt(8) != brute.size() || offset % 8 != 0 || bytes.length != offset + 16L * brute.size())
+            throw new RuntimeException(tree + ": file of " + bytes.length + " bytes with " + header.getInt(8)
+                                       + " points and " + buckets + " nodes");
+        for (int i = 16 + 4 * (buckets + 2); i < offset; i++)
+        {
+            if (bytes[i] != 0)
+                throw new RuntimeException(tree + ": padding byte " + i + " is " + bytes[i]);
+        }
+        if (flat.size() != brute.size() || mapped.size() != brute.size() || mapped.isEmpty() != brute.isEmpty())
+            throw new RuntimeException(tree + ": size " + flat.size() + " and mapped " + mapped.size()
+                                       + ", expected " + brute.size());
+
+        for (int i = 0; i < queries; i++)
+        {
+            Point2D q = gridPoint();
+            if (StdRandom.uniform(2) == 0)
+                q = new Point2D(StdRandom.uniform(), StdRandom.uniform());
+
+            if (flat.contains(q) != brute.contains(q) || mapped.contains(q) != brute.contains(q))
+                throw new RuntimeException(tree + ": contains(" + q + ") is " + flat.contains(q)
+                                           + " and mapped " + mapped.contains(q));
+
+            if (brute.isEmpty())
+            {
+                if (flat.nearest(q) != null || mapped.nearest(q) != null)
+                    throw new RuntimeException(tree + ": nearest(" + q + ") on an empty tree is not null");
+            }
+            else
+            {
+                double expected = brute.nearest(q).distanceSquaredTo(q);
+                if (flat.nearest(q).distanceSquaredTo(q) != expected
+                    || mapped.nearest(q).distanceSquaredTo(q) != expected)
+                    throw new RuntimeException(tree + ": nearest(" + q + ") is " + flat.nearest(q) + " and mapped "
+                                               + mapped.nearest(q) + ", expected " + brute.nearest(q));
+            }
+
+            Point2D a = gridPoint();
+            Point2D b = gridPoint();
+            RectHV rect = new RectHV(Math.min(a.x(), b.x()), Math.min(a.y(), b.y()),
+                                     Math.max(a.x(), b.x()), Math.max(a.y(), b.y()));
+            HashSet<Point2D> expected = new HashSet<Point2D>();
+            for (Point2D p : brute.range(rect))
+                expected.add(p);
+            HashSet<Point2D> found = new HashSet<Point2D>();
+            for (Point2D p : flat.range(rect))
+                found.add(p);
+            HashSet<Point2D> foundMapped = new HashSet<Point2D>();
+            for (Point2D p : mapped.range(rect))
+                foundMapped.add(p);
+            if (!found.equals(expected) || !foundMapped.equals(expected)
+                || flat.rangeCount(rect) != expected.size() || mapped.rangeCount(rect) != expected.size())
+                throw new RuntimeException(tree + ": range(" + rect + ") found " + found.size() + " and mapped "
+                                           + foundMapped.size() + ", rangeCount " + flat.rangeCount(rect)
+                                           + " and mapped " + mapped.rangeCount(rect) + ", expected "
+                                           + expected.size());
+        }
+
+        //  a file cut short anywhere must be refused
+        if (bytes.length > 0)
+        {
+            Files.write(file, Arrays.copyOf(bytes, StdRandom.uniform(bytes.length)));
+            try
+            {
+                new MappedKdTree(file.toString());
+                throw new RuntimeException(tree + ": a truncated file was mapped");
+            }
+            catch (IllegalArgumentException e)
+            {
+                //  expected
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*************************************************************************
+ *  Compilation:  javac NearestCache.java
+ *  Execution:    java NearestCache [operations]
+ *  Dependencies: Point2D.java KdTree.java PointVisitor.java PointScan.java
+ *                PointSET.java StdRandom.java StdOut.java
+ *
+ *  Bounded cache of nearest neighbor answers, used by KdTree once
+ *  enableCache() is called. Queries are grouped into square cells of
+ *  side quantum, and all the queries in a cell share the answer found
+ *  for the first of them; with quantum 0 only the very same query
+ *  point does. The least recently used answer is dropped when the
+ *  cache is full.
+ *
+ *  A shared answer is the nearest point to a query at most quantum *
+ *  sqrt(2) away, so it is at most twice that farther than the true
+ *  nearest one.
+ *
+ *  The tree tells the cache about every point added or removed. Adding
+ *  a point drops the answers it could beat, removing one drops the
+ *  answers that were that point. Neither scans the whole cache: the
+ *  query points of the answers are kept in a KdTree of their own, and
+ *  an answer the new point beats has its query no farther from it than
+ *  the largest cached distance plus the slack of a cell, so only the
+ *  queries within that radius are looked at. The answers that are a
+ *  given point are kept in a map from the point to their cells.
+ *
+ *  The main() method interleaves inserts, removes and nearest queries on
+ *  a KdTree with the cache on and checks every answer against the live
+ *  points: a point still in the tree, no more than 2 * quantum * sqrt(2)
+ *  farther than the nearest one, and the nearest one when quantum is 0.
+ *
+ *************************************************************************/
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+
+public class NearestCache
+{
+    private static class Cell
+    {
+        private final long x;
+        private final long y;
+
+        private Cell(long x, long y)
+        {
+            this.x = x;
+            this.y = y;
+        }
+
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Cell))
+                return false;
+            Cell that = (Cell) other;
+            return this.x == that.x && this.y == that.y;
+        }
+
+        public int hashCode()
+        {
+            long h = 31 * x + y;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    //  the nearest point to the query, at the given distance, cached for
+    //  the query's cell
+    private static class Answer
+    {
+        private final Point2D query;
+        private final Cell cell;
+        private final Point2D nearest;
+        private final double distance;
+
+        private Answer(Point2D query, Cell cell, Point2D nearest)
+        {
+            this.query = query;
+            this.cell = cell;
+            this.nearest = nearest;
+            this.distance = distance(query.x(), query.y(), nearest);
+        }
+    }
+
+    //  the answers by cell, least recently used first
+    private final LinkedHashMap<Cell, Answer> answers;
+    private final int capacity;
+    private final double quantum;
+
+    //  how much closer another query in the same cell may be to a point
+    private final double slack;
+
+    //  the same answers by query point, and the query points themselves
+    private final HashMap<Point2D, Answer> byQuery;
+    private final KdTree queries;
+
+    //  the cells whose answer is each point
+    private final HashMap<Point2D, ArrayList<Cell>> byNearest;
+
+    //  how many answers there are at each distance; the largest is how far
+    //  an answer a new point beats can be from it, less the slack
+    private final TreeMap<Double, Integer> distances;
+
+    private long hits;
+    private long misses;
+
+    //  holds at most capacity answers, for cells of side quantum
+    public NearestCache(int capacity, double quantum)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        if (!(quantum >= 0.0) || Double.isInfinite(quantum))
+            throw new IllegalArgumentException("quantum must be finite and nonnegative");
+
+        this.capacity = capacity;
+        this.quantum = quantum;
+        this.slack = quantum * Math.sqrt(2.0);
+        this.answers = new LinkedHashMap<Cell, Answer>(16, 0.75f, true);
+        this.byQuery = new HashMap<Point2D, Answer>();
+        this.queries = new KdTree();
+        this.byNearest = new HashMap<Point2D, ArrayList<Cell>>();
+        this.distances = new TreeMap<Double, Integer>();
+    }
+
+    private Cell cell(Point2D q)
+    {
+        if (quantum == 0.0)
+        {
+            //  + 0.0 turns -0.0 into 0.0, which equals() treats the same
+            return new Cell(Double.doubleToLongBits(q.x() + 0.0), Double.doubleToLongBits(q.y() + 0.0));
+        }
+        return new Cell((long) Math.floor(q.x() / quantum), (long) Math.floor(q.y() / quantum));
+    }
+
+    private static double distance(double x, double y, Point2D p)
+    {
+        return Math.sqrt(PointScan.distanceSquared(x, y, p));
+    }
+
+    //  the cached answer for q, null if there is none
+    public synchronized Point2D get(Point2D q)
+    {
+        Answer answer = answers.get(cell(q));
+        if (answer == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        return answer.nearest;
+    }
+
+    public synchronized void put(Point2D q, Point2D nearest)
+    {
+        Cell cell = cell(q);
+        if (answers.containsKey(cell))
+            drop(cell);
+
+        Answer answer = new Answer(q, cell, nearest);
+        answers.put(cell, answer);
+        byQuery.put(q, answer);
+        queries.insert(q);
+        ArrayList<Cell> cells = byNearest.get(nearest);
+        if (cells == null)
+        {
+            cells = new ArrayList<Cell>(1);
+            byNearest.put(nearest, cells);
+        }
+        cells.add(cell);
+        Integer count = distances.get(answer.distance);
+        if (count == null)
+            count = 0;
+        distances.put(answer.distance, count + 1);
+
+        if (answers.size() > capacity)
+            drop(answers.keySet().iterator().next());
+    }
+
+    //  forgets the answer for the cell
+    private void drop(Cell cell)
+    {
+        Answer answer = answers.remove(cell);
+        byQuery.remove(answer.query);
+        queries.remove(answer.query);
+        ArrayList<Cell> cells = byNearest.get(answer.nearest);
+        cells.remove(cell);
+        if (cells.isEmpty())
+            byNearest.remove(answer.nearest);
+        int count = distances.get(answer.distance);
+        if (count == 1)
+            distances.remove(answer.distance);
+        else
+            distances.put(answer.distance, count - 1);
+    }
+
+    //  drops the answers that p, just added to the tree, might be closer than
+    public synchronized void inserted(final Point2D p)
+    {
+        if (answers.isEmpty())
+            return;
+
+        //  a little wider than needed, so that rounding in withinRadius()
+        //  cannot leave out a query right at that distance
+        double radius = (distances.lastKey() + slack) * (1 + 1e-9);
+        final ArrayList<Cell> beaten = new ArrayList<Cell>();
+        queries.withinRadius(p, radius, new PointVisitor() {
+            public boolean visit(Point2D q) {
+                Answer answer = byQuery.get(q);
+                if (distance(q.x(), q.y(), p) <= answer.distance + slack)
+                    beaten.add(answer.cell);
+                return true;
+            }
+        });
+        for (Cell cell : beaten)
+            drop(cell);
+    }
+
+    //  drops the answers that were p, just removed from the tree
+    public synchronized void removed(Point2D p)
+    {
+        ArrayList<Cell> cells = byNearest.get(p);
+        if (cells == null)
+            return;
+        for (Cell cell : cells.toArray(new Cell[cells.size()]))
+            drop(cell);
+    }
+
+    public synchronized int size()
+    {
+        return answers.size();
+    }
+
+    public synchronized long hits()
+    {
+        return hits;
+    }
+
+    public synchronized long misses()
+    {
+        return misses;
+    }
+
+    public static void main(String[] args)
+    {
+        int operations = 200000;
+        if (args.length > 0)
+            operations = Integer.parseInt(args[0]);
+
+        for (double quantum : new double[] { 0.0, 0.001, 0.01, 0.05 })
+        {
+            for (int capacity : new int[] { 16, 4096 })
+                check(operations, capacity, quantum);
+        }
+    }
+
+    //  runs random operations on a tree with a cache of this capacity and
+    //  quantum, and throws if a nearest() answer is not good enough
+    private static void check(int operations, int capacity, double quantum)
+    {
+        long start = System.nanoTime();
+        KdTree tree = new KdTree();
+        tree.enableCache(capacity, quantum);
+        ArrayList<Point2D> points = new ArrayList<Point2D>();
+        HashMap<Point2D, Integer> index = new HashMap<Point2D, Integer>();
+        double bound = 2 * quantum * Math.sqrt(2.0);
+
+        for (int i = 0; i < operations; i++)
+        {
+            int op = StdRandom.uniform(4);
+            if (op == 0 || points.size() < 10)
+            {
+                Point2D p = new Point2D(StdRandom.uniform(), StdRandom.uniform());
+                if (!index.containsKey(p))
+                {
+                    index.put(p, points.size());
+                    points.add(p);
+                }
+                tree.insert(p);
+            }
+            else if (op == 1)
+            {
+                int j = StdRandom.uniform(points.size());
+                Point2D p = points.get(j);
+                Point2D last = points.remove(points.size() - 1);
+                index.remove(p);
+                if (j < points.size())
+                {
+                    points.set(j, last);
+                    index.put(last, j);
+                }
+                tree.remove(p);
+            }
+            else
+            {
+                //  queries from a small grid, a little apart, so that they
+                //  share cells and repeat
+                Point2D q = new Point2D(StdRandom.uniform(40) / 40.0 + StdRandom.uniform(3) * quantum / 3,
+                                        StdRandom.uniform(40) / 40.0 + StdRandom.uniform(3) * quantum / 3);
+                Point2D found = tree.nearest(q);
+                double exact = Double.POSITIVE_INFINITY;
+                for (Point2D p : points)
+                    exact = Math.min(exact, p.distanceTo(q));
+                if (!index.containsKey(found))
+                    throw new RuntimeException("quantum " + quantum + ": nearest(" + q + ") is " + found
+                                               + ", which is not in the tree");
+                if (quantum == 0.0 && found.distanceTo(q) != exact
+                    || found.distanceTo(q) > exact + bound + 1e-12)
+                    throw new RuntimeException("quantum " + quantum + ": nearest(" + q + ") is " + found
+                                               + " at " + found.distanceTo(q) + ", the nearest point is at " + exact);
+            }
+        }
+        StdOut.printf("capacity %d, quantum %s: %d operations, %d hits: ok (%.1f ms)\n", capacity, quantum,
+                      operations, tree.stats().getCacheHits(), (System.nanoTime() - start) / 1e6);
+    }
+}
@@ -1,7 +1,7 @@
 /*************************************************************************
  *  Compilation:  javac NearestNeighborVisualizer.java
  *  Execution:    java NearestNeighborVisualizer input.txt
- *  Dependencies: PointSET.java KdTree.java Point2D.java In.java StdDraw.java
+ *  Dependencies: PointSET.java KdTree.java Point2D.java PointFile.java StdDraw.java
  *
  *  Read points from a file (specified as a command-line argument) and
  *  draw to standard draw. Highlight the closest point to the mouse.
@@ -11,24 +11,21 @@
  *
  *************************************************************************/
 
+import java.io.IOException;
+
 public class NearestNeighborVisualizer {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         String filename = args[0];
-        In in = new In(filename);
+        PointFile points = PointFile.read(filename);
 
         StdDraw.show(0);
 
         // initialize the two data structures with point from standard input
         PointSET brute = new PointSET();
-        KdTree kdtree = new KdTree();
-        while (!in.isEmpty()) {
-            double x = in.readDouble();
-            double y = in.readDouble();
-            Point2D p = new Point2D(x, y);
-            kdtree.insert(p);
-            brute.insert(p);
-        }
+        KdTree kdtree = new KdTree(points.x(), points.y());
+        for (int i = 0; i < points.size(); i++)
+            brute.insert(new Point2D(points.x()[i], points.y()[i]));
 
         while (true) {
 
@@ -0,0 +1,495 @@
+/*************************************************************************
+ *  Compilation:  javac PointFile.java
+ *  Execution:    java PointFile input.txt output.bin
+ *                java PointFile [random tokens]
+ *  Dependencies: StdOut.java StdRandom.java
+ *
+ *  Reads points into two arrays of coordinates, ready to hand to the
+ *  KdTree(double[], double[]) and FlatKdTree(double[], double[]) bulk
+ *  builds, without making a Point2D or a String per point.
+ *
+ *  Two formats are understood. Text files are the whitespace-separated
+ *  x y pairs the visualizers use; they are read in large blocks and the
+ *  numbers are parsed straight from the bytes. Binary files (.bin) are
+ *  just the pairs as little-endian doubles, 16 bytes per point, and are
+ *  read through a direct buffer.
+ *
+ *  The main() method converts a text file to the binary format. Run
+ *  without files, it checks the fast number parser bit for bit against
+ *  Double.parseDouble(), on awkward tokens, random ones and ones split
+ *  across the read blocks, and round-trips the binary format.
+ *
+ *  % java PointFile input1M.txt input1M.bin
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class PointFile
+{
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    //  POWERS_OF_TEN[i] is 10^i, exactly
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static
+    {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+    }
+
+    private final double[] x;
+    private final double[] y;
+
+    private PointFile(double[] x, double[] y)
+    {
+        this.x = x;
+        this.y = y;
+    }
+
+    public int size()
+    {
+        return x.length;
+    }
+
+    //  x-coordinates of the points, not copied
+    public double[] x()
+    {
+        return x;
+    }
+
+    //  y-coordinates of the points, not copied
+    public double[] y()
+    {
+        return y;
+    }
+
+    //  reads a binary file if the name ends in .bin, a text file otherwise
+    public static PointFile read(String filename) throws IOException
+    {
+        if (filename.endsWith(".bin"))
+            return readBinary(filename);
+        return readText(filename);
+    }
+
+    public static PointFile readBinary(String filename) throws IOException
+    {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try
+        {
+            long bytes = channel.size();
+            if (bytes % 16 != 0)
+                throw new IllegalArgumentException(filename + " does not hold a whole number of points");
+            if (bytes / 16 > Integer.MAX_VALUE - 8)
+                throw new IllegalArgumentException(filename + " holds too many points");
+
+            int n = (int) (bytes / 16);
+            double[] x = new double[n];
+            double[] y = new double[n];
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            int i = 0;
+            while (i < n)
+            {
+                buffer.clear();
+                buffer.limit((int) Math.min(BLOCK_SIZE, 16L * (n - i)));
+                while (buffer.hasRemaining())
+                {
+                    if (channel.read(buffer) < 0)
+                        throw new IllegalArgumentException(filename + " ended early");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining())
+                {
+                    x[i] = buffer.getDouble();
+                    y[i] = buffer.getDouble();
+                    i++;
+                }
+            }
+            return new PointFile(x, y);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    public static PointFile readText(String filename) throws IOException
+    {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try
+        {
+            //  a point takes about 16 bytes of text; the arrays grow if not
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, channel.size() / 16 + 16);
+            double[] x = new double[capacity];
+            double[] y = new double[capacity];
+            long count = 0;    // numbers read, x and y alternating
+
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            byte[] b = buffer.array();
+            boolean eof = false;
+            while (!eof)
+            {
+                eof = channel.read(buffer) < 0;
+                int limit = buffer.position();
+                int i = 0;
+                while (true)
+                {
+                    while (i < limit && b[i] <= ' ')
+                        i++;
+                    int first = i;
+                    while (i < limit && b[i] > ' ')
+                        i++;
+                    if (i == first)
+                        break;
+
+                    //  the number may go on in the next block
+                    if (i == limit && !eof)
+                    {
+                        i = first;
+                        break;
+                    }
+
+                    int n = (int) (count / 2);
+                    if (n == x.length)
+                    {
+                        x = Arrays.copyOf(x, (int) Math.min(Integer.MAX_VALUE - 8, 2L * n));
+                        y = Arrays.copyOf(y, x.length);
+                    }
+                    if (count % 2 == 0)
+                        x[n] = parseDouble(b, first, i);
+                    else
+                        y[n] = parseDouble(b, first, i);
+                    count++;
+                }
+
+                //  keep the unread part for the next block
+                if (limit - i == b.length)
+                    throw new IllegalArgumentException(filename + " has a token longer than " + b.length + " bytes");
+                System.arraycopy(b, i, b, 0, limit - i);
+                buffer.position(limit - i);
+            }
+
+            if (count % 2 != 0)
+                throw new IllegalArgumentException(filename + " has an odd number of coordinates");
+            int n = (int) (count / 2);
+            return new PointFile(Arrays.copyOf(x, n), Arrays.copyOf(y, n));
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    //  parses the number in b[first..last). numbers with at most 18
+    //  significant digits whose decimal exponent is at most 22 either way
+    //  are exact: the digits fit in a long and, if they are at most 2^53,
+    //  convert to a double exactly, and one multiplication or division by
+    //  an exact power of ten then rounds correctly. anything else is left
+    //  to Double.parseDouble()
+    private static double parseDouble(byte[] b, int first, int last)
+    {
+        int i = first;
+        boolean negative = false;
+        if (b[i] == '-' || b[i] == '+')
+        {
+            negative = b[i] == '-';
+            i++;
+        }
+
+        long digits = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean any = false;
+        for (; i < last && b[i] >= '0' && b[i] <= '9'; i++)
+        {
+            if (significant == 18)
+                return slowParseDouble(b, first, last);
+            digits = 10 * digits + (b[i] - '0');
+            if (digits != 0)
+                significant++;
+            any = true;
+        }
+        if (i < last && b[i] == '.')
+        {
+            for (i++; i < last && b[i] >= '0' && b[i] <= '9'; i++)
+            {
+                if (significant == 18)
+                    return slowParseDouble(b, first, last);
+                digits = 10 * digits + (b[i] - '0');
+                if (digits != 0)
+                    significant++;
+                exponent--;
+                any = true;
+            }
+        }
+        if (!any)
+            return slowParseDouble(b, first, last);
+
+        if (i < last && (b[i] == 'e' || b[i] == 'E'))
+        {
+            i++;
+            boolean negativeExponent = false;
+            if (i < last && (b[i] == '-' || b[i] == '+'))
+            {
+                negativeExponent = b[i] == '-';
+                i++;
+            }
+            if (i == last)
+                return slowParseDouble(b, first, last);
+            int e = 0;
+            for (; i < last && b[i] >= '0' && b[i] <= '9'; i++)
+            {
+                if (e < 10000)
+                    e = 10 * e + (b[i] - '0');
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != last)
+            return slowParseDouble(b, first, last);
+
+        double v;
+        if (digits == 0)
+            v = 0.0;
+        else if (digits <= 1L << 53 && exponent >= -22 && exponent <= 22)
+        {
+            v = digits;
+            if (exponent < 0)
+                v /= POWERS_OF_TEN[-exponent];
+            else
+                v *= POWERS_OF_TEN[exponent];
+        }
+        else
+            return slowParseDouble(b, first, last);
+        return negative ? -v : v;
+    }
+
+    private static double slowParseDouble(byte[] b, int first, int last)
+    {
+        return Double.parseDouble(new String(b, first, last - first, StandardCharsets.ISO_8859_1));
+    }
+
+    //  saves the points (x[i], y[i]) in the binary format
+    public static void writeBinary(String filename, double[] x, double[] y) throws IOException
+    {
+        if (x.length != y.length)
+            throw new IllegalArgumentException("x and y have different lengths");
+
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE,
+                                               StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < x.length; i++)
+            {
+                if (buffer.remaining() < 16)
+                    flush(channel, buffer);
+                buffer.putDouble(x[i]);
+                buffer.putDouble(y[i]);
+            }
+            flush(channel, buffer);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 2)
+        {
+            long start = System.nanoTime();
+            PointFile points = readText(args[0]);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            writeBinary(args[1], points.x(), points.y());
+            StdOut.printf("read %d points in %.2f s, wrote %s\n", points.size(), seconds, args[1]);
+            return;
+        }
+
+        int tokens = 200000;
+        if (args.length > 0)
+            tokens = Integer.parseInt(args[0]);
+
+        //  the edges of the fast path: 18 and 19 significant digits, digits
+        //  either side of 2^53, exponents either side of 22, signed zeros,
+        //  leading zeros and a bare trailing point
+        String[] awkward = {
+            "0", "-0", "+0", "-0.0", "0.", "-0.", "1.", "-1.", ".5", "-.5", "+7", "0e0", "-0e-5",
+            "007", "000.000", "00012.3400", "0.000000000000000000000001", "-00.1e1",
+            "123456789012345678", "1234567890123456789", "999999999999999999", "1000000000000000000",
+            "12345678901234567.8", "0.123456789012345678", "0.1234567890123456789",
+            "9007199254740991", "9007199254740992", "9007199254740993", "9007199254740994",
+            "9007199254740995", "18014398509481985", "900719925474099.3", "9.007199254740993e-3",
+            "1e22", "1e23", "1e-22", "1e-23", "9.5e22", "9.5e-22", "4.7e23", "4.7e-23",
+            "123456789e22", "123456789e-22", "1E22", "1E+22", "1e+023", "1e-023",
+            "1.7976931348623157e308", "4.9e-324", "2.2250738585072014E-308", "1e400", "-1e-400",
+            "0.1", "0.2", "0.3", "3.141592653589793", "2.718281828459045", "1e-1", "1.0e1"
+        };
+        for (String token : awkward)
+            checkParse(token);
+        for (int i = 0; i < tokens; i++)
+            checkParse(randomToken());
+        StdOut.printf("%d awkward and %d random tokens: ok\n", awkward.length, tokens);
+
+        //  a token starting k bytes before the end of the first block is
+        //  split across the first two reads
+        Path file = Files.createTempFile("PointFile", ".txt");
+        try
+        {
+            for (int k = 0; k <= 26; k++)
+                checkText(file, k);
+            StdOut.printf("tokens split across blocks: ok\n");
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+        }
+
+        file = Files.createTempFile("PointFile", ".bin");
+        try
+        {
+            for (int n : new int[] { 0, 1, BLOCK_SIZE / 16 - 1, BLOCK_SIZE / 16, 2 * (BLOCK_SIZE / 16) + 3 })
+                checkBinary(file.toString(), n);
+            StdOut.printf("binary round trips: ok\n");
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    //  throws unless parseDouble() gives the same bits as Double.parseDouble()
+    private static void checkParse(String token)
+    {
+        byte[] b = token.getBytes(StandardCharsets.ISO_8859_1);
+        long found = Double.doubleToRawLongBits(parseDouble(b, 0, b.length));
+        long expected = Double.doubleToRawLongBits(Double.parseDouble(token));
+        if (found != expected)
+            throw new RuntimeException("parseDouble(\"" + token + "\") is " + Double.longBitsToDouble(found)
+                                       + ", expected " + Double.longBitsToDouble(expected));
+    }
+
+    //  a number with a random sign, leading zeros, 1 to 20 significant
+    //  digits, decimal point and exponent, or the digits of 2^53 plus a
+    //  little with a decimal point somewhere
+    private static String randomToken()
+    {
+        StringBuilder token = new StringBuilder();
+        int sign = StdRandom.uniform(4);
+        if (sign == 0)
+            token.append('-');
+        else if (sign == 1)
+            token.append('+');
+
+        StringBuilder digits = new StringBuilder();
+        if (StdRandom.uniform(8) == 0)
+            digits.append((1L << 53) + StdRandom.uniform(-20, 21));
+        else
+        {
+            for (int i = StdRandom.uniform(3); i > 0; i--)
+                digits.append('0');
+            int significant = StdRandom.uniform(1, 21);
+            digits.append((char) ('1' + StdRandom.uniform(9)));
+            for (int i = 1; i < significant; i++)
+                digits.append((char) ('0' + StdRandom.uniform(10)));
+        }
+        if (StdRandom.uniform(4) != 0)
+            digits.insert(StdRandom.uniform(digits.length() + 1), '.');
+        token.append(digits);
+
+        if (StdRandom.uniform(2) == 0)
+        {
+            token.append(StdRandom.uniform(2) == 0 ? 'e' : 'E');
+            int exponent = StdRandom.uniform(-26, 27);
+            if (exponent >= 0 && StdRandom.uniform(2) == 0)
+                token.append('+');
+            token.append(exponent);
+        }
+        return token.toString();
+    }
+
+    //  writes a file of random tokens in which one starts k bytes before
+    //  the end of the first block, reads it back and throws unless every
+    //  coordinate has the bits Double.parseDouble() gives
+    private static void checkText(Path file, int k) throws IOException
+    {
+        String[] whitespace = { " ", "  ", "\t", "\n", "\r\n" };
+        StringBuilder text = new StringBuilder();
+        int count = 0;
+        double[] expected = new double[2 * (BLOCK_SIZE / 4)];
+        while (text.length() < BLOCK_SIZE - k - 64)
+        {
+            String token = randomToken();
+            expected[count++] = Double.parseDouble(token);
+            text.append(token).append(whitespace[StdRandom.uniform(whitespace.length)]);
+        }
+        while (text.length() < BLOCK_SIZE - k)
+            text.append(' ');
+        while (count % 2 != 0 || text.length() < BLOCK_SIZE + 4096)
+        {
+            String token = randomToken();
+            expected[count++] = Double.parseDouble(token);
+            text.append(token).append(whitespace[StdRandom.uniform(whitespace.length)]);
+        }
+        Files.write(file, text.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        PointFile points = readText(file.toString());
+        if (2 * points.size() != count)
+            throw new RuntimeException("read " + points.size() + " points, expected " + count / 2
+                                       + " (token at " + k + " bytes before the block end)");
+        for (int i = 0; i < count; i++)
+        {
+            double found = points.x()[i / 2];
+            if (i % 2 != 0)
+                found = points.y()[i / 2];
+            if (Double.doubleToRawLongBits(found) != Double.doubleToRawLongBits(expected[i]))
+                throw new RuntimeException("coordinate " + i + " is " + found + ", expected " + expected[i]
+                                           + " (token at " + k + " bytes before the block end)");
+        }
+    }
+
+    //  writes n random points, some of them special values, in the binary
+    //  format and throws unless reading them back gives the same bits
+    private static void checkBinary(String filename, int n) throws IOException
+    {
+        double[] special = { -0.0, 0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                             Double.MIN_VALUE, Double.MAX_VALUE, Double.MIN_NORMAL };
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            x[i] = StdRandom.uniform() - 0.5;
+            y[i] = special[StdRandom.uniform(special.length)];
+            if (StdRandom.uniform(2) == 0)
+                y[i] = StdRandom.uniform() * 1e300;
+        }
+        writeBinary(filename, x, y);
+        PointFile points = readBinary(filename);
+        if (points.size() != n)
+            throw new RuntimeException("read " + points.size() + " points, expected " + n);
+        for (int i = 0; i < n; i++)
+        {
+            if (Double.doubleToRawLongBits(points.x()[i]) != Double.doubleToRawLongBits(x[i])
+                || Double.doubleToRawLongBits(points.y()[i]) != Double.doubleToRawLongBits(y[i]))
+                throw new RuntimeException("point " + i + " of " + n + " read back as (" + points.x()[i]
+                                           + ", " + points.y()[i] + "), expected (" + x[i] + ", " + y[i] + ")");
+        }
+    }
+}
@@ -4,71 +4,255 @@
   * Last Updated:  3/14/2014
   */
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class PointSET
 {
-  private SET<Point2D> points;
+    //  the points in the order they were inserted, point i being
+    //  (xs[i], ys[i]); the arrays double when they fill up
+    private double[] xs;
+    private double[] ys;
+    private int n;
+
+    //  open-addressing hash table of the points for contains(): each slot
+    //  is 0 or 1 + the index of a point, collisions go to the next slot.
+    //  it is kept at most half full
+    private int[] table;
+    private int tableBits;
+
+    //  from this many points on, range and nearest split the scan into
+    //  chunks of CHUNK points that the common fork/join pool runs in parallel
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int CHUNK = 1 << 13;
+
     public PointSET()
     {
-    points = new SET<Point2D>();
+        xs = new double[16];
+        ys = new double[16];
+        tableBits = 5;
+        table = new int[1 << tableBits];
     }
-    
+
     public boolean isEmpty()
     {
-        return points.isEmpty();
+        return n == 0;
     }
-    
+
     public int size()
     {
-      return points.size();
+        return n;
     }
-    
+
     public void insert(Point2D p)
     {
-        points.add(p);
+        double x = p.x();
+        double y = p.y();
+        int slot = slot(x, y);
+        if (table[slot] != 0)
+            return;
+
+        if (n == xs.length)
+        {
+            xs = Arrays.copyOf(xs, 2 * n);
+            ys = Arrays.copyOf(ys, 2 * n);
+        }
+        xs[n] = x;
+        ys[n] = y;
+        n++;
+        table[slot] = n;
+
+        if (2 * n > table.length)
+            rehash();
     }
-    
+
     public boolean contains(Point2D p)
     {
-      return points.contains(p);
+        return table[slot(p.x(), p.y())] != 0;
+    }
+
+    //  the slot holding (x, y), or the empty slot where it would go
+    private int slot(double x, double y)
+    {
+        int mask = table.length - 1;
+        for (int i = hash(x, y); ; i = (i + 1) & mask)
+        {
+            int j = table[i] - 1;
+            if (j < 0 || (xs[j] == x && ys[j] == y))
+                return i;
+        }
+    }
+
+    //  the top tableBits bits of the coordinates' bits mixed by a
+    //  multiplication. Point2D turns -0.0 into 0.0, so equal points have
+    //  equal bits
+    private int hash(double x, double y)
+    {
+        long bits = Double.doubleToLongBits(x) * 31 + Double.doubleToLongBits(y);
+        return (int) ((bits * 0x9e3779b97f4a7c15L) >>> (64 - tableBits));
+    }
+
+    //  doubles the table and puts every point back in
+    private void rehash()
+    {
+        tableBits++;
+        table = new int[1 << tableBits];
+        for (int i = 0; i < n; i++)
+            table[slot(xs[i], ys[i])] = i + 1;
     }
-    
+
     public void draw()
     {
-        for (Point2D p : points)
+        for (int i = 0; i < n; i++)
         {
-            p.draw();
+            StdDraw.point(xs[i], ys[i]);
         }
     }
-    
-    public Iterable<Point2D> range(RectHV rect)
+
+    public Iterable<Point2D> range(final RectHV rect)
+    {
+        if (n < PARALLEL_THRESHOLD)
+            return range(rect, 0, n);
+
+        //  each chunk's points, concatenated in order
+        List<ArrayList<Point2D>> chunks = chunks().mapToObj(new IntFunction<ArrayList<Point2D>>()
+        {
+            public ArrayList<Point2D> apply(int chunk)
+            {
+                return range(rect, chunk * CHUNK, Math.min(n, (chunk + 1) * CHUNK));
+            }
+        }).collect(Collectors.<ArrayList<Point2D>>toList());
+
+        ArrayList<Point2D> inRange = new ArrayList<Point2D>();
+        for (ArrayList<Point2D> points : chunks)
+            inRange.addAll(points);
+        return inRange;
+    }
+
+    private ArrayList<Point2D> range(RectHV rect, int lo, int hi)
     {
-      ArrayList<Point2D> inRange = new ArrayList<Point2D>();
-      for (Point2D p : points)
-      {
-        if (rect.contains(p))
+        ArrayList<Point2D> inRange = new ArrayList<Point2D>();
+        for (int i = lo; i < hi; i++)
         {
-          inRange.add(p);
+            if (inside(rect, i))
+                inRange.add(new Point2D(xs[i], ys[i]));
         }
-      }
-      
-      return inRange;
+        return inRange;
     }
-    
-    public Point2D nearest(Point2D p)
+
+    //  hands every point inside rect to the visitor until it returns false
+    public void range(RectHV rect, PointVisitor visitor)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            if (inside(rect, i) && !visitor.visit(new Point2D(xs[i], ys[i])))
+                return;
+        }
+    }
+
+    public int rangeCount(final RectHV rect)
     {
-        Point2D minPoint = null;
-        double minDistance = Double.POSITIVE_INFINITY;
-        double distance = 0.0;
-        for (Point2D point : points)
+        if (n < PARALLEL_THRESHOLD)
+            return PointScan.count(xs, ys, 0, n, rect.xmin(), rect.ymin(), rect.xmax(), rect.ymax());
+
+        return chunks().map(new IntUnaryOperator()
         {
-            distance = p.distanceTo(point);
-            if (distance < minDistance)
+            public int applyAsInt(int chunk)
             {
-                minPoint = point;
-                minDistance = distance;
+                return PointScan.count(xs, ys, chunk * CHUNK, Math.min(n, (chunk + 1) * CHUNK),
+                                       rect.xmin(), rect.ymin(), rect.xmax(), rect.ymax());
             }
+        }).sum();
+    }
+
+    private boolean inside(RectHV rect, int i)
+    {
+        return xs[i] >= rect.xmin() && xs[i] <= rect.xmax() && ys[i] >= rect.ymin() && ys[i] <= rect.ymax();
+    }
+
+    //  the numbers of the chunks, as a parallel stream
+    private IntStream chunks()
+    {
+        return IntStream.range(0, (n + CHUNK - 1) / CHUNK).parallel();
+    }
+
+    public Point2D nearest(Point2D p)
+    {
+        if (n == 0)
+            return null;
+
+        final double x = p.x();
+        final double y = p.y();
+        int best;
+        if (n < PARALLEL_THRESHOLD)
+            best = PointScan.nearest(xs, ys, 0, n, x, y, Double.POSITIVE_INFINITY);
+        else
+        {
+            //  the closest point of each chunk, then the closest of those,
+            //  the earlier one on a tie as in the sequential scan
+            best = chunks()
+                .map(new IntUnaryOperator()
+                {
+                    public int applyAsInt(int chunk)
+                    {
+                        return PointScan.nearest(xs, ys, chunk * CHUNK, Math.min(n, (chunk + 1) * CHUNK),
+                                                 x, y, Double.POSITIVE_INFINITY);
+                    }
+                })
+                .reduce(new IntBinaryOperator()
+                {
+                    public int applyAsInt(int i, int j)
+                    {
+                        double di = distanceSquared(i, x, y);
+                        double dj = distanceSquared(j, x, y);
+                        if (dj < di || (dj == di && j < i))
+                            return j;
+                        return i;
+                    }
+                })
+                .getAsInt();
         }
-        return minPoint;
+        return new Point2D(xs[best], ys[best]);
+    }
+
+    private double distanceSquared(int i, double x, double y)
+    {
+        double dx = xs[i] - x;
+        double dy = ys[i] - y;
+        return dx * dx + dy * dy;
+    }
+
+    //  the k points closest to p, nearest first
+    public Iterable<Point2D> nearest(Point2D p, int k)
+    {
+        if (k < 0)
+            throw new IllegalArgumentException("k must be nonnegative");
+
+        //  the k closest points seen so far, in PointScan's max-heap
+        k = Math.min(k, n);
+        double[] heapDistance = new double[k + 1];
+        int[] heapIndex = new int[k + 1];
+        int size = 0;
+        double x = p.x();
+        double y = p.y();
+        for (int i = 0; i < n && k > 0; i++)
+            size = PointScan.offer(heapDistance, heapIndex, size, k, distanceSquared(i, x, y), i);
+
+        Point2D[] sorted = new Point2D[size];
+        while (size > 0)
+        {
+            sorted[size - 1] = new Point2D(xs[heapIndex[1]], ys[heapIndex[1]]);
+            size = PointScan.removeFarthest(heapDistance, heapIndex, size);
+        }
+
+        ArrayList<Point2D> neighbors = new ArrayList<Point2D>();
+        for (Point2D neighbor : sorted)
+            neighbors.add(neighbor);
+        return neighbors;
     }
 }
\ No newline at end of file
@@ -0,0 +1,226 @@
+/*************************************************************************
+ *  Compilation:  javac PointScan.java
+ *  Dependencies: Point2D.java
+ *
+ *  Linear scans over points packed in two arrays of coordinates, point
+ *  i being (xs[i], ys[i]), for the buckets of FlatKdTree and for other
+ *  brute-force searches, and the same scans over two DoubleBuffers for
+ *  the mapped files of MappedKdTree. They compare squared distances,
+ *  never taking a square root, and keep the loops plain: C2 unrolls
+ *  them itself, and unrolling nearest by hand into several accumulators
+ *  made it slower. count is the exception: whether a point is inside
+ *  the rectangle is as good as random, so it adds up the comparisons
+ *  without branching on them, which KdTreeBenchmark times at about a
+ *  third of the branching loop once more than a few percent of the
+ *  points are inside.
+ *
+ *  PointScanVector has nearest and count on the incubating Vector API,
+ *  compiled on its own with --add-modules jdk.incubator.vector; these
+ *  loops are what runs without it.
+ *
+ *  Also here, for the trees and PointSET to share: the squared distance
+ *  from a query to a point and to a rectangle, and the max-heap of point
+ *  indices keyed by distance that their k-nearest scans keep.
+ *
+ *************************************************************************/
+
+import java.nio.DoubleBuffer;
+
+public final class PointScan
+{
+    private PointScan()
+    {
+    }
+
+    //  index of the first point in [lo, hi) closest to (x, y), if its
+    //  distance squared is less than bestDistance; -1 otherwise
+    public static int nearest(double[] xs, double[] ys, int lo, int hi, double x, double y, double bestDistance)
+    {
+        int best = -1;
+        for (int i = lo; i < hi; i++)
+        {
+            double dx = xs[i] - x;
+            double dy = ys[i] - y;
+            double distance = dx * dx + dy * dy;
+            if (distance < bestDistance)
+            {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    //  number of points in [lo, hi) inside [xmin, xmax] x [ymin, ymax]
+    public static int count(double[] xs, double[] ys, int lo, int hi,
+                            double xmin, double ymin, double xmax, double ymax)
+    {
+        int count = 0;
+        for (int i = lo; i < hi; i++)
+        {
+            boolean inside = xs[i] >= xmin & xs[i] <= xmax & ys[i] >= ymin & ys[i] <= ymax;
+            count += inside ? 1 : 0;
+        }
+        return count;
+    }
+
+    //  index of the first point in [lo, hi) equal to (x, y), -1 if none is
+    public static int indexOf(double[] xs, double[] ys, int lo, int hi, double x, double y)
+    {
+        for (int i = lo; i < hi; i++)
+        {
+            if (xs[i] == x && ys[i] == y)
+                return i;
+        }
+        return -1;
+    }
+
+    //  nearest() over points (xs.get(i), ys.get(i))
+    public static int nearest(DoubleBuffer xs, DoubleBuffer ys, int lo, int hi, double x, double y, double bestDistance)
+    {
+        if (wrapsArrays(xs, ys))
+            return nearest(xs.array(), ys.array(), lo, hi, x, y, bestDistance);
+        int best = -1;
+        for (int i = lo; i < hi; i++)
+        {
+            double dx = xs.get(i) - x;
+            double dy = ys.get(i) - y;
+            double distance = dx * dx + dy * dy;
+            if (distance < bestDistance)
+            {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    //  count() over points (xs.get(i), ys.get(i))
+    public static int count(DoubleBuffer xs, DoubleBuffer ys, int lo, int hi,
+                            double xmin, double ymin, double xmax, double ymax)
+    {
+        if (wrapsArrays(xs, ys))
+            return count(xs.array(), ys.array(), lo, hi, xmin, ymin, xmax, ymax);
+        int count = 0;
+        for (int i = lo; i < hi; i++)
+        {
+            double x = xs.get(i);
+            double y = ys.get(i);
+            boolean inside = x >= xmin & x <= xmax & y >= ymin & y <= ymax;
+            count += inside ? 1 : 0;
+        }
+        return count;
+    }
+
+    //  indexOf() over points (xs.get(i), ys.get(i))
+    public static int indexOf(DoubleBuffer xs, DoubleBuffer ys, int lo, int hi, double x, double y)
+    {
+        if (wrapsArrays(xs, ys))
+            return indexOf(xs.array(), ys.array(), lo, hi, x, y);
+        for (int i = lo; i < hi; i++)
+        {
+            if (xs.get(i) == x && ys.get(i) == y)
+                return i;
+        }
+        return -1;
+    }
+
+    //  are both buffers whole arrays, index i of the buffer being index i
+    //  of the array? then the array scans above are the faster way
+    private static boolean wrapsArrays(DoubleBuffer xs, DoubleBuffer ys)
+    {
+        return xs.hasArray() && ys.hasArray() && xs.arrayOffset() == 0 && ys.arrayOffset() == 0;
+    }
+
+    //  distance squared from (x, y) to p
+    public static double distanceSquared(double x, double y, Point2D p)
+    {
+        double dx = p.x() - x;
+        double dy = p.y() - y;
+        return dx * dx + dy * dy;
+    }
+
+    //  distance squared from (x, y) to the closest point of [xmin, xmax] x [ymin, ymax],
+    //  same as RectHV.distanceSquaredTo() without needing the rectangle
+    public static double distanceSquared(double x, double y,
+                                         double xmin, double ymin, double xmax, double ymax)
+    {
+        double dx = 0.0;
+        double dy = 0.0;
+        if (x < xmin) dx = x - xmin;
+        else if (x > xmax) dx = x - xmax;
+        if (y < ymin) dy = y - ymin;
+        else if (y > ymax) dy = y - ymax;
+        return dx * dx + dy * dy;
+    }
+
+    //  the heap below is a max-heap on distance of the indices of the k
+    //  closest points seen so far, 1-based like MaxPQ: entry i, for i in
+    //  [1, n], is index[i] at distance[i], and entry 1 is the farthest.
+    //  both arrays need room for k + 1 entries
+
+    //  adds point i at distance d to the heap of n entries if it holds
+    //  fewer than k or d is less than its farthest, which d then replaces;
+    //  returns the new number of entries
+    public static int offer(double[] distance, int[] index, int n, int k, double d, int i)
+    {
+        if (n < k)
+        {
+            n++;
+            distance[n] = d;
+            index[n] = i;
+            swim(distance, index, n);
+        }
+        else if (d < distance[1])
+        {
+            distance[1] = d;
+            index[1] = i;
+            sink(distance, index, 1, n);
+        }
+        return n;
+    }
+
+    //  removes the farthest entry, index[1], from the heap of n entries;
+    //  returns the new number of entries
+    public static int removeFarthest(double[] distance, int[] index, int n)
+    {
+        distance[1] = distance[n];
+        index[1] = index[n];
+        n--;
+        sink(distance, index, 1, n);
+        return n;
+    }
+
+    private static void swim(double[] distance, int[] index, int i)
+    {
+        while (i > 1 && distance[i / 2] < distance[i])
+        {
+            exchange(distance, index, i, i / 2);
+            i = i / 2;
+        }
+    }
+
+    private static void sink(double[] distance, int[] index, int i, int n)
+    {
+        while (2 * i <= n)
+        {
+            int j = 2 * i;
+            if (j < n && distance[j] < distance[j + 1])
+                j++;
+            if (distance[i] >= distance[j])
+                break;
+            exchange(distance, index, i, j);
+            i = j;
+        }
+    }
+
+    private static void exchange(double[] distance, int[] index, int i, int j)
+    {
+        double d = distance[i];
+        distance[i] = distance[j];
+        distance[j] = d;
+        int t = index[i];
+        index[i] = index[j];
+        index[j] = t;
+    }
+}
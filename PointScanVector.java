@@ -0,0 +1,101 @@
+/*************************************************************************
+ *  Compilation:  javac --add-modules jdk.incubator.vector \
+ *                    PointScanVector.java
+ *  Dependencies: PointScan.java
+ *
+ *  PointScan.nearest and PointScan.count on the jdk.incubator.vector
+ *  API, a vector of points per step: each lane keeps the closest point
+ *  it has seen, or the comparisons of all the lanes are counted at once.
+ *  The points past the last whole vector are left to the scalar loops
+ *  of PointScan, which are also the fallback wherever this class is not
+ *  compiled. The answers are the same as PointScan's, to the bit.
+ *
+ *  The module is still incubating, so this file is compiled and run on
+ *  its own with --add-modules jdk.incubator.vector, and nothing but
+ *  KdTreeBenchmark, which times it against PointScan when it is there,
+ *  uses it.
+ *
+ *  % javac --add-modules jdk.incubator.vector PointScanVector.java
+ *  % java --add-modules jdk.incubator.vector KdTreeBenchmark N Q
+ *
+ *************************************************************************/
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public final class PointScanVector
+{
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private PointScanVector()
+    {
+    }
+
+    //  PointScan.nearest(): index of the first point in [lo, hi) closest to
+    //  (x, y), if its distance squared is less than bestDistance; -1 otherwise
+    public static int nearest(double[] xs, double[] ys, int lo, int hi, double x, double y, double bestDistance)
+    {
+        int lanes = SPECIES.length();
+        int i = lo;
+        int best = -1;
+        if (hi - lo >= lanes)
+        {
+            DoubleVector vx = DoubleVector.broadcast(SPECIES, x);
+            DoubleVector vy = DoubleVector.broadcast(SPECIES, y);
+            DoubleVector laneDistance = DoubleVector.broadcast(SPECIES, bestDistance);
+            //  indices as doubles, exact below 2^53, so that they blend
+            //  with the distances lane for lane
+            DoubleVector index = DoubleVector.zero(SPECIES).addIndex(1).add(lo);
+            DoubleVector laneBest = DoubleVector.broadcast(SPECIES, -1.0);
+            DoubleVector step = DoubleVector.broadcast(SPECIES, lanes);
+            for (int bound = lo + SPECIES.loopBound(hi - lo); i < bound; i += lanes)
+            {
+                //  no fused multiply-add, so the distances round as PointScan's do
+                DoubleVector dx = DoubleVector.fromArray(SPECIES, xs, i).sub(vx);
+                DoubleVector dy = DoubleVector.fromArray(SPECIES, ys, i).sub(vy);
+                DoubleVector distance = dx.mul(dx).add(dy.mul(dy));
+                VectorMask<Double> closer = distance.compare(VectorOperators.LT, laneDistance);
+                laneDistance = laneDistance.blend(distance, closer);
+                laneBest = laneBest.blend(index, closer);
+                index = index.add(step);
+            }
+
+            //  the closest of the lanes, the first point on a tie
+            double closest = laneDistance.reduceLanes(VectorOperators.MIN);
+            if (closest < bestDistance)
+            {
+                VectorMask<Double> tied = laneDistance.compare(VectorOperators.EQ, closest);
+                best = (int) laneBest.blend(Double.POSITIVE_INFINITY, tied.not()).reduceLanes(VectorOperators.MIN);
+                bestDistance = closest;
+            }
+        }
+
+        int rest = PointScan.nearest(xs, ys, i, hi, x, y, bestDistance);
+        if (rest >= 0)
+            best = rest;
+        return best;
+    }
+
+    //  PointScan.count(): number of points in [lo, hi) inside
+    //  [xmin, xmax] x [ymin, ymax]
+    public static int count(double[] xs, double[] ys, int lo, int hi,
+                            double xmin, double ymin, double xmax, double ymax)
+    {
+        int lanes = SPECIES.length();
+        int i = lo;
+        int count = 0;
+        for (int bound = lo + SPECIES.loopBound(hi - lo); i < bound; i += lanes)
+        {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, xs, i);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, ys, i);
+            VectorMask<Double> inside = vx.compare(VectorOperators.GE, xmin)
+                                          .and(vx.compare(VectorOperators.LE, xmax))
+                                          .and(vy.compare(VectorOperators.GE, ymin))
+                                          .and(vy.compare(VectorOperators.LE, ymax));
+            count += inside.trueCount();
+        }
+        return count + PointScan.count(xs, ys, i, hi, xmin, ymin, xmax, ymax);
+    }
+}
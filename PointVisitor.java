@@ -0,0 +1,15 @@
+/*************************************************************************
+ *  Compilation:  javac PointVisitor.java
+ *  Dependencies: Point2D.java
+ *
+ *  Callback for queries that hand their results over one point at a
+ *  time instead of collecting them in a list.
+ *
+ *************************************************************************/
+
+public interface PointVisitor
+{
+    //  called once for every point the query finds; return false to stop
+    //  the query early
+    boolean visit(Point2D p);
+}
@@ -2,7 +2,7 @@
  *  Compilation:  javac RangeSearchVisualizer.java
  *  Execution:    java RangeSearchVisualizer input.txt
  *  Dependencies: PointSET.java KdTree.java Point2D.java RectHV.java
- *                StdDraw.java In.java
+ *                StdDraw.java PointFile.java
  *
  *  Read points from a file (specified as a command-line arugment) and
  *  draw to standard draw. Also draw all of the points in the rectangle
@@ -13,26 +13,22 @@
  *
  *************************************************************************/
 
+import java.io.IOException;
+
 public class RangeSearchVisualizer {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
         String filename = args[0];
-        In in = new In(filename);
-
+        PointFile points = PointFile.read(filename);
 
         StdDraw.show(0);
 
         // initialize the data structures with N points from standard input
         PointSET brute = new PointSET();
-        KdTree kdtree = new KdTree();
-        while (!in.isEmpty()) {
-            double x = in.readDouble();
-            double y = in.readDouble();
-            Point2D p = new Point2D(x, y);
-            kdtree.insert(p);
-            brute.insert(p);
-        }
+        KdTree kdtree = new KdTree(points.x(), points.y());
+        for (int i = 0; i < points.size(); i++)
+            brute.insert(new Point2D(points.x()[i], points.y()[i]));
 
         double x0 = 0.0, y0 = 0.0;      // initial endpoint of rectangle
         double x1 = 0.0, y1 = 0.0;      // current location of mouse